@@ -22,19 +22,115 @@
 #include <sys/ioctl.h>
 #include <sys/socket.h>
 #include <errno.h>
+#include <poll.h>
+#include <sys/time.h>
+#include <sys/syscall.h>
+#include <sys/un.h>
+#include <stddef.h>
+#include <signal.h>
+#include <fcntl.h>
 
 #ifndef aligned_be64
 #define aligned_be64 u_int64_t __attribute__((aligned(8)))
 #endif
 
 #include <linux/netfilter/nfnetlink_log.h>
+#include <linux/netfilter/nfnetlink_conntrack.h>
+#include <linux/inet_diag.h>
+
+#include "nlrecord.h"
 
 char *netlog_if_indextoname (unsigned int ifindex, char *ifname);
 void free_net_devices(void);
 void cleanup(void);
 
-#define MAX_NETDEVICES 32
-static char *devices[MAX_NETDEVICES] = {0};
+/* printed by -V; the app looks for this string in the installed binary, and
+ * passes options only to helpers that have it, since the first helper took
+ * just the queue number; bump the number when options are added */
+#define HELPER_VERSION "NetworkLog nflog helper 2"
+
+/* interface names by index, grown as higher indexes show up; indexes keep
+ * climbing as interfaces come and go, and may be reused under a new name,
+ * so known names are looked up again after a while */
+#define MAX_IFINDEX 65536
+#define IFNAME_REFRESH_MS 10000
+#define IFNAME_RETRY_MS 1000
+
+struct net_device {
+    char name[IFNAMSIZ];        /* "" if not known yet */
+    char sent[IFNAMSIZ];        /* name in the last NLREC_IFNAME, "" if none */
+    long long checked;          /* monotonic ms of the last lookup */
+};
+
+static struct net_device *devices = NULL;
+static unsigned int devices_size = 0;
+
+static long long monotonic_ms(void);
+
+/* write NLREC_* records instead of text lines */
+static int binary_output = 0;
+
+/* -1 flushes stdout after every packet; otherwise output is buffered and
+ * flushed after a receive batch once this many milliseconds have passed
+ * since the last flush */
+static int flush_latency = -1;
+static int output_pending = 0;
+static long long last_flush = 0;
+
+#define OUTPUT_BUFFER_SIZE (64 * 1024)
+static char output_buffer[OUTPUT_BUFFER_SIZE];
+
+/* netlink reads: up to RECV_BATCH messages of recv_size bytes per call */
+#define RECV_BATCH 8
+#define MAX_KERNEL_NLBUFSIZ 131072
+
+#ifndef SO_RCVBUFFORCE
+#define SO_RCVBUFFORCE 33
+#endif
+
+#ifndef MSG_WAITFORONE
+#define MSG_WAITFORONE 0x10000
+#endif
+
+struct recv_msg {               /* struct mmsghdr, which older headers lack */
+    struct msghdr hdr;
+    unsigned int len;
+};
+
+static size_t recv_size = 0;     /* at least MNL_SOCKET_BUFFER_SIZE */
+static char *recv_buffers;
+static struct recv_msg recv_msgs[RECV_BATCH];
+static struct iovec recv_iov[RECV_BATCH];
+static struct sockaddr_nl recv_addr[RECV_BATCH];
+static int have_recvmmsg = 1;
+
+/* capture statistics, reported every stats_interval seconds with -s */
+static uint64_t messages_received = 0;
+static uint64_t packets_logged = 0;
+static uint64_t bytes_received = 0;
+/* messages lost to a full socket buffer (ENOBUFS) or a short read buffer */
+static uint64_t overruns = 0;
+static uint64_t truncated = 0;
+
+static int stats_interval = 0;
+static long long next_stats = 0;
+
+/* flow aggregation (-a): seconds between summaries, 0 if disabled */
+static int aggregate_interval = 0;
+static int idle_timeout = 0;
+
+/* enough of the packet to cover the IP header (with options, or the IPv6
+ * header and common extension headers) and the leading bytes of the
+ * TCP/UDP/ICMP header, which is all log_cb reads */
+#define HEADER_COPY_RANGE 128
+
+#define IPV6_HEADER_LEN 40
+
+/* ctnetlink multicast groups, from nfnetlink_compat.h on newer headers */
+#ifndef NF_NETLINK_CONNTRACK_NEW
+#define NF_NETLINK_CONNTRACK_NEW        0x00000001
+#define NF_NETLINK_CONNTRACK_DESTROY    0x00000004
+#endif
 
 static int parse_attr_cb(const struct nlattr *attr, void *data)
 {
@@ -113,129 +209,670 @@ char *netlog_if_indextoname (unsigned int ifindex, char *ifname)
         return strncpy (ifname, ifr.ifr_name, IFNAMSIZ);
 }
 
-static inline char *get_net_device_name_by_index(int ifindex) {
-    if(ifindex < 0 || ifindex > MAX_NETDEVICES - 1) {
+static struct net_device *get_net_device(unsigned int ifindex)
+{
+    if (ifindex >= MAX_IFINDEX) {
         return NULL;
     }
 
-    if(!devices[ifindex]) {
-        devices[ifindex] = malloc(IFNAMSIZ);
-        if(!devices[ifindex]) {
-            perror("malloc");
-            exit(EXIT_FAILURE);
+    if (ifindex >= devices_size) {
+        unsigned int size = devices_size ? devices_size : 32;
+        struct net_device *grown;
+
+        while (size <= ifindex) {
+            size *= 2;
         }
 
-        netlog_if_indextoname(ifindex, devices[ifindex]);
-        if(!devices[ifindex]) {
-            perror("if_indextoname");
+        grown = realloc(devices, size * sizeof(*devices));
+        if (!grown) {
+            perror("realloc");
             exit(EXIT_FAILURE);
         }
+
+        memset(grown + devices_size, 0, (size - devices_size) * sizeof(*devices));
+        devices = grown;
+        devices_size = size;
+    }
+
+    return &devices[ifindex];
+}
+
+/* NULL if the name is not known; failed lookups are retried sooner than
+ * known names are refreshed */
+static char *get_net_device_name_by_index(unsigned int ifindex)
+{
+    struct net_device *dev = get_net_device(ifindex);
+    long long now;
+
+    if (!dev) {
+        return NULL;
+    }
+
+    now = monotonic_ms();
+
+    if (dev->checked == 0
+            || now - dev->checked >= (dev->name[0] ? IFNAME_REFRESH_MS : IFNAME_RETRY_MS)) {
+        char name[IFNAMSIZ];
+
+        dev->checked = now;
+
+        /* a device that is gone keeps its last name, for packets still
+         * queued from it */
+        if (netlog_if_indextoname(ifindex, name)) {
+            name[IFNAMSIZ - 1] = 0;
+            memcpy(dev->name, name, IFNAMSIZ);
+        }
     }
 
-    return devices[ifindex];
+    return dev->name[0] ? dev->name : NULL;
+}
+
+static void set_net_device_name(unsigned int ifindex, const char *name)
+{
+    struct net_device *dev = get_net_device(ifindex);
+
+    if (dev) {
+        strncpy(dev->name, name, IFNAMSIZ - 1);
+        dev->checked = monotonic_ms();
+    }
 }
 
 void free_net_devices(void) {
-    int i;
-    for(i = 0; i < MAX_NETDEVICES - 1; i++) {
-        if(devices[i]) {
-            free (devices[i]);
+    free(devices);
+    devices = NULL;
+    devices_size = 0;
+}
+
+struct packet_info {
+    const char *prefix;
+    int has_indev, has_outdev;
+    uint32_t indev, outdev;
+    int has_payload;
+    uint8_t family;             /* 4 or 6 */
+    uint8_t saddr[16], daddr[16];
+    uint32_t len;
+    uint8_t protocol;
+    int has_transport;
+    uint16_t sport, dport, udp_len;
+    uint8_t icmp_type, icmp_code;
+    int has_uid;
+    uint32_t uid;
+    int64_t timestamp;          /* ms since the epoch */
+};
+
+static void parse_transport(const uint8_t *transport, int transport_len,
+        struct packet_info *pkt)
+{
+    switch(pkt->protocol) 
+    {
+        case IPPROTO_TCP: 
+            if (transport_len >= 4) {
+                const struct tcphdr *th = (const struct tcphdr *) transport;
+                pkt->has_transport = 1;
+                pkt->sport = ntohs(th->source);
+                pkt->dport = ntohs(th->dest);
+            }
+            break;
+        case IPPROTO_UDP:
+            if (transport_len >= (int) sizeof(struct udphdr)) {
+                const struct udphdr *uh = (const struct udphdr *) transport;
+                pkt->has_transport = 1;
+                pkt->sport = ntohs(uh->source);
+                pkt->dport = ntohs(uh->dest);
+                pkt->udp_len = ntohs(uh->len);
+            }
+            break;
+        case IPPROTO_ICMP:
+        case IPPROTO_ICMPV6:
+            /* type and code are the first two bytes of both */
+            if (transport_len >= 2) {
+                pkt->has_transport = 1;
+                pkt->icmp_type = transport[0];
+                pkt->icmp_code = transport[1];
+            }
+            break;
+    }
+}
+
+static void parse_ipv4(const uint8_t *payload, int payload_len, struct packet_info *pkt)
+{
+    const struct iphdr *iph = (const struct iphdr *) payload;
+    /* the payload may be cut short by the copy range */
+    int transport_len = payload_len - iph->ihl * 4;
+
+    if (payload_len < (int) sizeof(struct iphdr)) {
+        return;
+    }
+
+    pkt->has_payload = 1;
+    pkt->family = 4;
+    memcpy(pkt->saddr, &iph->saddr, 4);
+    memcpy(pkt->daddr, &iph->daddr, 4);
+    pkt->len = ntohs(iph->tot_len);
+    pkt->protocol = iph->protocol;
+
+    parse_transport(payload + iph->ihl * 4, transport_len, pkt);
+}
+
+/* Walks the extension header chain to the upper-layer protocol.  The fixed
+ * header is read by offset (version/class/flow 0-3, payload length 4-5,
+ * next header 6, hop limit 7, addresses 8-39) to stay clear of the
+ * linux/ipv6.h vs netinet/in.h definitions. */
+static void parse_ipv6(const uint8_t *payload, int payload_len, struct packet_info *pkt)
+{
+    int offset = IPV6_HEADER_LEN;
+    uint8_t nexthdr;
+
+    if (payload_len < IPV6_HEADER_LEN) {
+        return;
+    }
+
+    pkt->has_payload = 1;
+    pkt->family = 6;
+    memcpy(pkt->saddr, payload + 8, 16);
+    memcpy(pkt->daddr, payload + 24, 16);
+    pkt->len = ((payload[4] << 8) | payload[5]) + IPV6_HEADER_LEN;
+    nexthdr = payload[6];
+
+    while (1) {
+        switch (nexthdr) {
+            case IPPROTO_HOPOPTS:
+            case IPPROTO_ROUTING:
+            case IPPROTO_DSTOPTS:
+                if (payload_len < offset + 2) {
+                    goto truncated;
+                }
+                nexthdr = payload[offset];
+                offset += (payload[offset + 1] + 1) * 8;
+                continue;
+            case IPPROTO_FRAGMENT:
+                if (payload_len < offset + 8) {
+                    goto truncated;
+                }
+                /* only the first fragment carries the transport header */
+                if (((payload[offset + 2] << 8) | payload[offset + 3]) & ~0x7) {
+                    pkt->protocol = payload[offset];
+                    return;
+                }
+                nexthdr = payload[offset];
+                offset += 8;
+                continue;
+            case IPPROTO_AH:
+                if (payload_len < offset + 2) {
+                    goto truncated;
+                }
+                nexthdr = payload[offset];
+                offset += (payload[offset + 1] + 2) * 4;
+                continue;
         }
+        break;
     }
+
+    pkt->protocol = nexthdr;
+    parse_transport(payload + offset, payload_len - offset, pkt);
+    return;
+
+truncated:
+    /* copy range ended inside the extension headers */
+    pkt->protocol = nexthdr;
 }
 
-static int log_cb(const struct nlmsghdr *nlh, void *data)
+static uint64_t get_be64(const uint8_t *p)
 {
-    struct nlattr *tb[NFULA_MAX+1] = {};
+    return ((uint64_t) ((p[0] << 24) | (p[1] << 16) | (p[2] << 8) | p[3]) << 32)
+        | (uint32_t) ((p[4] << 24) | (p[5] << 16) | (p[6] << 8) | p[7]);
+}
 
-    mnl_attr_parse(nlh, sizeof(struct nfgenmsg), parse_attr_cb, tb);
+/* the timestamp is left 0 when the kernel did not stamp the packet (sent
+ * packets, and received ones while nothing has enabled rx timestamping);
+ * the caller then uses the time it arrived here */
+static void parse_packet(struct nlattr **tb, struct packet_info *pkt)
+{
+    memset(pkt, 0, sizeof(*pkt));
 
     if (tb[NFULA_PREFIX]) {
-        const char *prefix = mnl_attr_get_str(tb[NFULA_PREFIX]);
-        printf("%s ", prefix);
+        pkt->prefix = mnl_attr_get_str(tb[NFULA_PREFIX]);
     }
 
     if (tb[NFULA_IFINDEX_INDEV]) {
-        uint32_t indev = ntohl(mnl_attr_get_u32(tb[NFULA_IFINDEX_INDEV]));
-        char *instr = get_net_device_name_by_index(indev);
+        pkt->has_indev = 1;
+        pkt->indev = ntohl(mnl_attr_get_u32(tb[NFULA_IFINDEX_INDEV]));
+    }
+
+    if (tb[NFULA_IFINDEX_OUTDEV]) {
+        pkt->has_outdev = 1;
+        pkt->outdev = ntohl(mnl_attr_get_u32(tb[NFULA_IFINDEX_OUTDEV]));
+    }
+
+    if (tb[NFULA_PAYLOAD] && mnl_attr_get_payload_len(tb[NFULA_PAYLOAD]) > 0) {
+        const uint8_t *payload = mnl_attr_get_payload(tb[NFULA_PAYLOAD]);
+        int payload_len = mnl_attr_get_payload_len(tb[NFULA_PAYLOAD]);
+
+        switch (payload[0] >> 4) {
+            case 4:
+                parse_ipv4(payload, payload_len, pkt);
+                break;
+            case 6:
+                parse_ipv6(payload, payload_len, pkt);
+                break;
+        }
+    }
+
+    if (tb[NFULA_UID]) {
+        pkt->has_uid = 1;
+        pkt->uid = ntohl(mnl_attr_get_u32(tb[NFULA_UID]));
+    }
+
+    if (tb[NFULA_TIMESTAMP]) {
+        const uint8_t *ts = mnl_attr_get_payload(tb[NFULA_TIMESTAMP]);
+        pkt->timestamp = (int64_t) get_be64(ts) * 1000 + (int64_t) get_be64(ts + 8) / 1000;
+    }
+}
+
+static void print_packet_text(const struct packet_info *pkt)
+{
+    if (pkt->prefix) {
+        printf("%s ", pkt->prefix);
+    }
+
+    if (pkt->has_indev) {
+        char *instr = get_net_device_name_by_index(pkt->indev);
         printf("IN=%s ", instr ? instr : "");
     } else {
         printf("IN= ");
     }
 
-    if (tb[NFULA_IFINDEX_OUTDEV]) {
-        uint32_t outdev = ntohl(mnl_attr_get_u32(tb[NFULA_IFINDEX_OUTDEV]));
-        char *outstr = get_net_device_name_by_index(outdev);
+    if (pkt->has_outdev) {
+        char *outstr = get_net_device_name_by_index(pkt->outdev);
         printf("OUT=%s ", outstr ? outstr : "");
     } else {
         printf("OUT= ");
     }
 
-    if (tb[NFULA_PAYLOAD]) {
-        struct iphdr *iph = (struct iphdr *) mnl_attr_get_payload(tb[NFULA_PAYLOAD]);
-
-        printf("SRC=%u.%u.%u.%u DST=%u.%u.%u.%u ",
-                ((unsigned char *)&iph->saddr)[0],
-                ((unsigned char *)&iph->saddr)[1],
-                ((unsigned char *)&iph->saddr)[2],
-                ((unsigned char *)&iph->saddr)[3],
-                ((unsigned char *)&iph->daddr)[0],
-                ((unsigned char *)&iph->daddr)[1],
-                ((unsigned char *)&iph->daddr)[2],
-                ((unsigned char *)&iph->daddr)[3]);
+    if (pkt->has_payload) {
+        if (pkt->family == 6) {
+            char src[INET6_ADDRSTRLEN], dst[INET6_ADDRSTRLEN];
+            inet_ntop(AF_INET6, pkt->saddr, src, sizeof(src));
+            inet_ntop(AF_INET6, pkt->daddr, dst, sizeof(dst));
+            printf("SRC=%s DST=%s ", src, dst);
+        } else {
+            printf("SRC=%u.%u.%u.%u DST=%u.%u.%u.%u ",
+                    pkt->saddr[0], pkt->saddr[1], pkt->saddr[2], pkt->saddr[3],
+                    pkt->daddr[0], pkt->daddr[1], pkt->daddr[2], pkt->daddr[3]);
+        }
 
-        printf("LEN=%u ", ntohs(iph->tot_len));
+        printf("LEN=%u ", pkt->len);
 
-        switch(iph->protocol) 
+        switch(pkt->protocol) 
         {
             case IPPROTO_TCP: 
-                {
-                    struct tcphdr *th = (struct tcphdr *) ((__u32 *) iph + iph->ihl);
-                    printf("PROTO=TCP SPT=%u DPT=%u ",
-                            ntohs(th->source), ntohs(th->dest));
-                    break;
+                if (pkt->has_transport) {
+                    printf("PROTO=TCP SPT=%u DPT=%u ", pkt->sport, pkt->dport);
+                } else {
+                    printf("PROTO=TCP ");
                 }
+                break;
             case IPPROTO_UDP:
-                {
-                    struct udphdr *uh = (struct udphdr *) ((__u32 *) iph + iph->ihl);
+                if (pkt->has_transport) {
                     printf("PROTO=UDP SPT=%u DPT=%u LEN=%u ",
-                            ntohs(uh->source), ntohs(uh->dest), ntohs(uh->len));
-                    break;
+                            pkt->sport, pkt->dport, pkt->udp_len);
+                } else {
+                    printf("PROTO=UDP ");
                 }
+                break;
             case IPPROTO_ICMP:
-                {
-                    struct icmphdr *ich = (struct icmphdr *) ((__u32 *) iph + iph->ihl);
+                if (pkt->has_transport) {
                     printf("PROTO=ICMP TYPE=%u CODE=%u ", 
-                        ich->type, ich->code);
-                    break;
+                        pkt->icmp_type, pkt->icmp_code);
+                } else {
+                    printf("PROTO=ICMP ");
                 }
-            default: 
-                {
-                    printf("PROTO=%u ", iph->protocol);
+                break;
+            case IPPROTO_ICMPV6:
+                if (pkt->has_transport) {
+                    printf("PROTO=ICMPv6 TYPE=%u CODE=%u ", 
+                        pkt->icmp_type, pkt->icmp_code);
+                } else {
+                    printf("PROTO=ICMPv6 ");
                 }
+                break;
+            default: 
+                printf("PROTO=%u ", pkt->protocol);
         }
     }
 
-    if (tb[NFULA_UID]) {
-        uint32_t uid = ntohl(mnl_attr_get_u32(tb[NFULA_UID]));
-        printf("UID=%u ", uid);
+    if (pkt->has_uid) {
+        printf("UID=%u ", pkt->uid);
     }
 
+    printf("TS=%lld ", (long long) pkt->timestamp);
+
     puts("");
-    fflush(stdout); // apparently this is necessary for some devices!
+}
+
+/* written when the name of ifindex is first known and whenever it changes;
+ * an index whose name cannot be found yet is tried again with its next
+ * packet */
+static void write_ifname_record(uint32_t ifindex)
+{
+    uint8_t rec[NLREC_IFNAME_SIZE];
+    char *name = get_net_device_name_by_index(ifindex);
+    struct net_device *dev;
+
+    if (!name) {
+        return;
+    }
+
+    dev = &devices[ifindex];
+
+    if (!strcmp(dev->sent, name)) {
+        return;
+    }
+
+    nlrec_header(rec, NLREC_IFNAME, 0, NLREC_IFNAME_SIZE);
+    nlrec_put_u32(rec + 4, ifindex);
+    strncpy((char *) rec + 8, name, IFNAMSIZ - 1);
+
+    fwrite(rec, 1, sizeof(rec), stdout);
+    memcpy(dev->sent, name, IFNAMSIZ);
+}
+
+static long long monotonic_ms(void)
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (long long) ts.tv_sec * 1000 + ts.tv_nsec / 1000000;
+}
+
+static void flush_output(void)
+{
+    fflush(stdout);
+    output_pending = 0;
+    last_flush = monotonic_ms();
+}
+
+/* milliseconds until buffered output must be flushed, or -1 if none is
+ * pending */
+static int flush_timeout(void)
+{
+    long long remaining;
+
+    if (!output_pending) {
+        return -1;
+    }
+
+    remaining = last_flush + flush_latency - monotonic_ms();
+    return remaining > 0 ? (int) remaining : 0;
+}
+
+static void output_written(void)
+{
+    if (flush_latency < 0) {
+        fflush(stdout); // apparently this is necessary for some devices!
+    } else {
+        output_pending = 1;
+    }
+}
+
+static int64_t wallclock_ms(void)
+{
+    struct timeval tv;
+    gettimeofday(&tv, NULL);
+    return (int64_t) tv.tv_sec * 1000 + tv.tv_usec / 1000;
+}
+
+/* fills the fields NLREC_PACKET and NLREC_FLOW share */
+static void put_packet_fields(uint8_t *rec, const struct packet_info *pkt)
+{
+    if (pkt->has_indev) {
+        write_ifname_record(pkt->indev);
+    }
+
+    if (pkt->has_outdev) {
+        write_ifname_record(pkt->outdev);
+    }
+
+    rec[4] = pkt->protocol;
+    nlrec_put_u16(rec + 6, pkt->sport);
+    nlrec_put_u16(rec + 8, pkt->dport);
+    nlrec_put_u32(rec + 12, pkt->has_uid ? pkt->uid : (uint32_t) -1);
+    nlrec_put_u32(rec + 24, pkt->has_indev ? pkt->indev : 0);
+    nlrec_put_u32(rec + 28, pkt->has_outdev ? pkt->outdev : 0);
+    memcpy(rec + 40, pkt->saddr, 16);
+    memcpy(rec + 56, pkt->daddr, 16);
+}
+
+static void write_packet_binary(const struct packet_info *pkt)
+{
+    uint8_t rec[NLREC_PACKET_SIZE];
+
+    if (!pkt->has_payload) {
+        /* nothing worth logging without addresses */
+        return;
+    }
+
+    nlrec_header(rec, NLREC_PACKET, pkt->family, NLREC_PACKET_SIZE);
+    put_packet_fields(rec, pkt);
+    nlrec_put_u64(rec + 16, pkt->timestamp);
+    nlrec_put_u32(rec + 32, pkt->len);
+
+    fwrite(rec, 1, sizeof(rec), stdout);
+}
+
+/* Flow table for aggregation mode: a fixed pool of flows chained from a
+ * fixed bucket array, so nothing is allocated per packet.  Flows are keyed
+ * on everything a summary reports except the counters. */
+#define MAX_FLOWS       4096
+#define FLOW_BUCKETS    4096
+#define FLOW_NONE       -1
+#define FLOW_SWEEP_MS   1000
+
+struct flow {
+    struct packet_info key;     /* prefix and per-packet fields zeroed */
+    uint32_t packets;
+    uint64_t bytes;
+    int64_t first_seen, last_seen;
+    long long last_active;      /* monotonic ms, for the idle timeout */
+    int next;
+};
+
+static struct flow flows[MAX_FLOWS];
+static int flow_buckets[FLOW_BUCKETS];
+static int flow_free = FLOW_NONE;
+static int flow_count = 0;
+static long long next_sweep = 0;
+static long long next_summary = 0;
+
+static void init_flows(void)
+{
+    int i;
+
+    for (i = 0; i < FLOW_BUCKETS; i++) {
+        flow_buckets[i] = FLOW_NONE;
+    }
+
+    for (i = 0; i < MAX_FLOWS; i++) {
+        flows[i].next = i + 1 < MAX_FLOWS ? i + 1 : FLOW_NONE;
+    }
+
+    flow_free = 0;
+    flow_count = 0;
+}
+
+static void make_flow_key(const struct packet_info *pkt, struct packet_info *key)
+{
+    memset(key, 0, sizeof(*key));
+    key->has_indev = pkt->has_indev;
+    key->has_outdev = pkt->has_outdev;
+    key->indev = pkt->indev;
+    key->outdev = pkt->outdev;
+    key->family = pkt->family;
+    memcpy(key->saddr, pkt->saddr, 16);
+    memcpy(key->daddr, pkt->daddr, 16);
+    key->protocol = pkt->protocol;
+    key->sport = pkt->sport;
+    key->dport = pkt->dport;
+    key->has_uid = pkt->has_uid;
+    key->uid = pkt->uid;
+}
+
+static unsigned int hash_flow_key(const struct packet_info *key)
+{
+    /* FNV-1a */
+    const uint8_t *p = (const uint8_t *) key;
+    unsigned int hash = 2166136261u;
+    size_t i;
+
+    for (i = 0; i < sizeof(*key); i++) {
+        hash = (hash ^ p[i]) * 16777619u;
+    }
+
+    return hash % FLOW_BUCKETS;
+}
+
+static void write_flow_record(const struct flow *flow)
+{
+    uint8_t rec[NLREC_FLOW_SIZE];
+
+    nlrec_header(rec, NLREC_FLOW, flow->key.family, NLREC_FLOW_SIZE);
+    put_packet_fields(rec, &flow->key);
+    nlrec_put_u64(rec + 16, flow->last_seen);
+    nlrec_put_u32(rec + 32, flow->packets);
+    nlrec_put_u64(rec + 72, flow->bytes);
+    nlrec_put_u64(rec + 80, flow->first_seen);
+
+    fwrite(rec, 1, sizeof(rec), stdout);
+}
+
+/* Emits summaries for flows with packets since the last summary.  Flows
+ * idle past the timeout (or all flows, if evict_all) are released. */
+static void sweep_flows(int summarize, int evict_all)
+{
+    long long now = monotonic_ms();
+    int written = 0;
+    int i, *link, index;
+
+    for (i = 0; i < FLOW_BUCKETS; i++) {
+        link = &flow_buckets[i];
+
+        while ((index = *link) != FLOW_NONE) {
+            struct flow *flow = &flows[index];
+            int evict = evict_all || now - flow->last_active >= idle_timeout * 1000LL;
+
+            if (flow->packets && (summarize || evict)) {
+                write_flow_record(flow);
+                flow->packets = 0;
+                flow->bytes = 0;
+                written = 1;
+            }
+
+            if (evict) {
+                *link = flow->next;
+                flow->next = flow_free;
+                flow_free = index;
+                flow_count--;
+            } else {
+                link = &flow->next;
+            }
+        }
+    }
+
+    if (written) {
+        output_written();
+    }
+}
+
+static void update_flow(const struct packet_info *pkt)
+{
+    struct packet_info key;
+    struct flow *flow;
+    unsigned int bucket;
+    int index;
+
+    if (!pkt->has_payload) {
+        return;
+    }
+
+    make_flow_key(pkt, &key);
+    bucket = hash_flow_key(&key);
+
+    for (index = flow_buckets[bucket]; index != FLOW_NONE; index = flows[index].next) {
+        if (memcmp(&flows[index].key, &key, sizeof(key)) == 0) {
+            break;
+        }
+    }
+
+    if (index == FLOW_NONE) {
+        if (flow_free == FLOW_NONE) {
+            /* table full; report everything and start over */
+            sweep_flows(1, 1);
+        }
+
+        index = flow_free;
+        flow = &flows[index];
+        flow_free = flow->next;
+        flow_count++;
+
+        memcpy(&flow->key, &key, sizeof(key));
+        flow->packets = 0;
+        flow->bytes = 0;
+        flow->next = flow_buckets[bucket];
+        flow_buckets[bucket] = index;
+    }
+
+    flow = &flows[index];
+
+    if (flow->packets == 0 || pkt->timestamp < flow->first_seen) {
+        flow->first_seen = pkt->timestamp;
+    }
+
+    if (flow->packets == 0 || pkt->timestamp > flow->last_seen) {
+        flow->last_seen = pkt->timestamp;
+    }
+
+    flow->packets++;
+    flow->bytes += pkt->len;
+    flow->last_active = monotonic_ms();
+}
+
+static int log_cb(const struct nlmsghdr *nlh, void *data)
+{
+    struct nlattr *tb[NFULA_MAX+1] = {};
+    struct packet_info pkt;
+
+    mnl_attr_parse(nlh, sizeof(struct nfgenmsg), parse_attr_cb, tb);
+    parse_packet(tb, &pkt);
+    packets_logged++;
+
+    if (!pkt.timestamp) {
+        pkt.timestamp = wallclock_ms();
+    }
+
+    if (aggregate_interval) {
+        update_flow(&pkt);
+        return MNL_CB_OK;
+    }
+
+    if (binary_output) {
+        write_packet_binary(&pkt);
+    } else {
+        print_packet_text(&pkt);
+    }
+
+    output_written();
 
     return MNL_CB_OK;
 }
 
     static struct nlmsghdr *
-nflog_build_cfg_pf_request(char *buf, uint8_t command)
+nflog_build_cfg_pf_request(char *buf, uint8_t command, uint8_t family)
 {
     struct nlmsghdr *nlh = mnl_nlmsg_put_header(buf);
     nlh->nlmsg_type	= (NFNL_SUBSYS_ULOG << 8) | NFULNL_MSG_CONFIG;
     nlh->nlmsg_flags = NLM_F_REQUEST;
 
     struct nfgenmsg *nfg = mnl_nlmsg_put_extra_header(nlh, sizeof(*nfg));
-    nfg->nfgen_family = AF_INET;
+    nfg->nfgen_family = family;
     nfg->version = NFNETLINK_V0;
 
     struct nfulnl_msg_config_cmd cmd = {
@@ -287,32 +924,1175 @@ nflog_build_cfg_params(char *buf, uint8_t mode, int range, int qnum)
     return nlh;
 }
 
-struct mnl_socket *nl = 0;
-
-void cleanup(void) {
-  if(nl != 0)
-    mnl_socket_close(nl);
-  free_net_devices();
-}
-
-int main(int argc, char *argv[])
+    static struct nlmsghdr *
+nflog_build_cfg_batching(char *buf, unsigned int qthresh, int timeout, int qnum)
 {
-    char buf[MNL_SOCKET_BUFFER_SIZE];
-    struct nlmsghdr *nlh;
-    int ret;
-    unsigned int portid, qnum;
+    struct nlmsghdr *nlh = mnl_nlmsg_put_header(buf);
+    nlh->nlmsg_type	= (NFNL_SUBSYS_ULOG << 8) | NFULNL_MSG_CONFIG;
+    nlh->nlmsg_flags = NLM_F_REQUEST;
 
-    atexit(cleanup);
+    struct nfgenmsg *nfg = mnl_nlmsg_put_extra_header(nlh, sizeof(*nfg));
+    nfg->nfgen_family = AF_UNSPEC;
+    nfg->version = NFNETLINK_V0;
+    nfg->res_id = htons(qnum);
 
-    if (argc != 2) {
-        printf("Usage: %s [queue_num]\n", argv[0]);
-        exit(EXIT_FAILURE);
+    /* what is not given keeps the kernel's default (1 packet, 1 s) */
+    if (qthresh > 1) {
+        mnl_attr_put_u32(nlh, NFULA_CFG_QTHRESH, htonl(qthresh));
     }
-    qnum = atoi(argv[1]);
 
-    nl = mnl_socket_open(NETLINK_NETFILTER);
-    if (nl == NULL) {
-        perror("mnl_socket_open");
+    if (timeout >= 0) {
+        /* kernel timeout is in 1/100 s; round up so small values still batch */
+        mnl_attr_put_u32(nlh, NFULA_CFG_TIMEOUT, htonl((timeout + 9) / 10));
+    }
+
+    return nlh;
+}
+
+    static struct nlmsghdr *
+nflog_build_cfg_nlbufsiz(char *buf, uint32_t size, int qnum)
+{
+    struct nlmsghdr *nlh = mnl_nlmsg_put_header(buf);
+    nlh->nlmsg_type	= (NFNL_SUBSYS_ULOG << 8) | NFULNL_MSG_CONFIG;
+    nlh->nlmsg_flags = NLM_F_REQUEST;
+
+    struct nfgenmsg *nfg = mnl_nlmsg_put_extra_header(nlh, sizeof(*nfg));
+    nfg->nfgen_family = AF_UNSPEC;
+    nfg->version = NFNETLINK_V0;
+    nfg->res_id = htons(qnum);
+
+    mnl_attr_put_u32(nlh, NFULA_CFG_NLBUFSIZ, htonl(size));
+
+    return nlh;
+}
+
+struct mnl_socket *nl = 0;
+
+static void init_receive(void)
+{
+    int i;
+
+    recv_buffers = malloc(recv_size * RECV_BATCH);
+    if (!recv_buffers) {
+        perror("malloc");
+        exit(EXIT_FAILURE);
+    }
+
+    for (i = 0; i < RECV_BATCH; i++) {
+        recv_iov[i].iov_base = recv_buffers + i * recv_size;
+        recv_iov[i].iov_len = recv_size;
+        recv_msgs[i].hdr.msg_iov = &recv_iov[i];
+        recv_msgs[i].hdr.msg_iovlen = 1;
+        recv_msgs[i].hdr.msg_name = &recv_addr[i];
+    }
+}
+
+/* Reads every message already queued on the socket, up to RECV_BATCH, in
+ * one recvmmsg() call (one recvmsg() per call on kernels without it).
+ * Blocks for the first message.  Returns the number of messages read,
+ * with lengths in recv_msgs[i].len, or -1 with errno set. */
+static int receive_batch(int fd)
+{
+    int i, ret;
+
+    for (i = 0; i < RECV_BATCH; i++) {
+        recv_msgs[i].hdr.msg_namelen = sizeof(struct sockaddr_nl);
+        recv_msgs[i].hdr.msg_flags = 0;
+        recv_msgs[i].len = 0;
+    }
+
+#ifdef __NR_recvmmsg
+    if (have_recvmmsg) {
+        ret = syscall(__NR_recvmmsg, fd, recv_msgs, RECV_BATCH, MSG_WAITFORONE, NULL);
+
+        if (ret >= 0 || errno != ENOSYS) {
+            return ret;
+        }
+
+        have_recvmmsg = 0;
+    }
+#endif
+
+    ret = recvmsg(fd, &recv_msgs[0].hdr, 0);
+
+    if (ret < 0) {
+        return -1;
+    }
+
+    recv_msgs[0].len = ret;
+    return 1;
+}
+
+static void set_receive_buffer(int fd, int size)
+{
+    /* SO_RCVBUFFORCE ignores rmem_max but needs CAP_NET_ADMIN */
+    if (setsockopt(fd, SOL_SOCKET, SO_RCVBUFFORCE, &size, sizeof(size)) < 0
+            && setsockopt(fd, SOL_SOCKET, SO_RCVBUF, &size, sizeof(size)) < 0) {
+        perror("setsockopt");
+    }
+}
+
+static void write_stats(void)
+{
+    if (binary_output) {
+        uint8_t rec[NLREC_STATS_SIZE];
+
+        nlrec_header(rec, NLREC_STATS, 0, NLREC_STATS_SIZE);
+        nlrec_put_u64(rec + 8, messages_received);
+        nlrec_put_u64(rec + 16, packets_logged);
+        nlrec_put_u64(rec + 24, bytes_received);
+        nlrec_put_u64(rec + 32, overruns);
+        nlrec_put_u64(rec + 40, truncated);
+
+        fwrite(rec, 1, sizeof(rec), stdout);
+    } else {
+        printf("{NLSTATS} MESSAGES=%llu PACKETS=%llu BYTES=%llu OVERRUNS=%llu TRUNCATED=%llu\n",
+                (unsigned long long) messages_received, (unsigned long long) packets_logged,
+                (unsigned long long) bytes_received, (unsigned long long) overruns,
+                (unsigned long long) truncated);
+    }
+
+    output_written();
+}
+
+/* tells the app logging has started, so it need not guess how long the
+ * setup takes; sent right away whatever the flush latency */
+static void write_ready(void)
+{
+    if (binary_output) {
+        uint8_t rec[NLREC_READY_SIZE];
+
+        nlrec_header(rec, NLREC_READY, 0, NLREC_READY_SIZE);
+        fwrite(rec, 1, sizeof(rec), stdout);
+    } else {
+        puts("{NLREADY}");
+    }
+
+    fflush(stdout);
+}
+
+/* milliseconds until the next flow sweep, or -1 if there are no flows */
+static int flow_timeout(void)
+{
+    long long remaining;
+
+    if (!aggregate_interval || flow_count == 0) {
+        return -1;
+    }
+
+    remaining = next_sweep - monotonic_ms();
+    return remaining > 0 ? (int) remaining : 0;
+}
+
+static int earliest_timeout(int a, int b)
+{
+    if (a < 0 || (b >= 0 && b < a)) {
+        return b;
+    }
+
+    return a;
+}
+
+static int next_timeout(void)
+{
+    int timeout = flush_latency >= 0 ? flush_timeout() : -1;
+
+    timeout = earliest_timeout(timeout, flow_timeout());
+
+    if (stats_interval) {
+        long long remaining = next_stats - monotonic_ms();
+        timeout = earliest_timeout(timeout, remaining > 0 ? (int) remaining : 0);
+    }
+
+    return timeout;
+}
+
+static void run_timers(void)
+{
+    long long now = monotonic_ms();
+
+    if (aggregate_interval && now >= next_sweep) {
+        int summarize = now >= next_summary;
+
+        sweep_flows(summarize, 0);
+        next_sweep = now + FLOW_SWEEP_MS;
+
+        if (summarize) {
+            next_summary = now + aggregate_interval * 1000LL;
+        }
+    }
+
+    if (stats_interval && now >= next_stats) {
+        write_stats();
+        next_stats = now + stats_interval * 1000LL;
+    }
+
+    if (output_pending && flush_timeout() == 0) {
+        flush_output();
+    }
+}
+
+/* connects stdout to the abstract unix socket the service listens on, so
+ * records go straight to it instead of through the su shell's pipe */
+static void connect_output_socket(const char *name)
+{
+    struct sockaddr_un addr;
+    size_t length = strlen(name);
+    int fd;
+
+    if (length + 1 > sizeof(addr.sun_path)) {
+        fprintf(stderr, "nflog: socket name too long\n");
+        exit(EXIT_FAILURE);
+    }
+
+    memset(&addr, 0, sizeof(addr));
+    addr.sun_family = AF_UNIX;
+    /* sun_path[0] stays 0 for the abstract namespace */
+    memcpy(addr.sun_path + 1, name, length);
+
+    fd = socket(AF_UNIX, SOCK_STREAM, 0);
+
+    if (fd < 0) {
+        perror("socket");
+        exit(EXIT_FAILURE);
+    }
+
+    if (connect(fd, (struct sockaddr *) &addr, offsetof(struct sockaddr_un, sun_path) + 1 + length) < 0) {
+        perror("connect");
+        exit(EXIT_FAILURE);
+    }
+
+    if (dup2(fd, STDOUT_FILENO) < 0) {
+        perror("dup2");
+        exit(EXIT_FAILURE);
+    }
+
+    close(fd);
+
+    /* a closed socket is noticed by wait_for_input instead */
+    signal(SIGPIPE, SIG_IGN);
+}
+
+/* waits for input on fd; watch_fd (stdin, or the output socket) hanging
+ * up means the service wants us to stop, -1 to not watch */
+static int wait_for_input(int fd, int timeout_ms, int watch_fd)
+{
+    struct pollfd fds[2];
+    char discard[64];
+    int ret;
+
+    fds[0].fd = fd;
+    fds[0].events = POLLIN;
+    fds[1].fd = watch_fd;
+    fds[1].events = POLLIN;
+
+    while (1) {
+        ret = poll(fds, watch_fd >= 0 ? 2 : 1, timeout_ms);
+
+        if (ret < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            perror("poll");
+            exit(EXIT_FAILURE);
+        }
+
+        if (ret == 0) {
+            return -1;
+        }
+
+        if (watch_fd >= 0 && fds[1].revents) {
+            if (read(watch_fd, discard, sizeof(discard)) <= 0) {
+                return 0;
+            }
+        }
+
+        if (fds[0].revents) {
+            return 1;
+        }
+    }
+}
+
+/* kmsg mode (-k): devices with only the LOG target get their packets from
+ * the kernel log; the lines are parsed here into the same records */
+#define KMSG_BUFFER_SIZE (64 * 1024)
+static char kmsg_buffer[KMSG_BUFFER_SIZE];
+
+/* interface index for a name from a log line; the name is cached so its
+ * NLREC_IFNAME record does not depend on looking the index up again */
+static int kmsg_ifindex(const char *name, size_t len, uint32_t *ifindex)
+{
+    char ifname[IFNAMSIZ];
+    unsigned int index;
+
+    if (len == 0 || len >= IFNAMSIZ) {
+        return 0;
+    }
+
+    memcpy(ifname, name, len);
+    ifname[len] = 0;
+
+    index = if_nametoindex(ifname);
+
+    if (index == 0 || index >= MAX_IFINDEX) {
+        return 0;
+    }
+
+    set_net_device_name(index, ifname);
+
+    *ifindex = index;
+    return 1;
+}
+
+static int kmsg_address(const char *text, size_t len, uint8_t *addr, uint8_t *family)
+{
+    char address[INET6_ADDRSTRLEN];
+
+    if (len == 0 || len >= sizeof(address)) {
+        return 0;
+    }
+
+    memcpy(address, text, len);
+    address[len] = 0;
+    memset(addr, 0, 16);
+
+    if (memchr(address, ':', len)) {
+        *family = 6;
+        return inet_pton(AF_INET6, address, addr) == 1;
+    }
+
+    *family = 4;
+    return inet_pton(AF_INET, address, addr) == 1;
+}
+
+static uint32_t kmsg_number(const char *p, const char *end)
+{
+    uint32_t value = 0;
+
+    while (p < end && *p >= '0' && *p <= '9') {
+        value = value * 10 + (*p++ - '0');
+    }
+
+    return value;
+}
+
+static uint8_t kmsg_protocol(const char *p, size_t len)
+{
+    if (len == 3 && !memcmp(p, "TCP", 3)) {
+        return IPPROTO_TCP;
+    } else if (len == 3 && !memcmp(p, "UDP", 3)) {
+        return IPPROTO_UDP;
+    } else if (len == 4 && !memcmp(p, "ICMP", 4)) {
+        return IPPROTO_ICMP;
+    } else if (len == 6 && !memcmp(p, "ICMPv6", 6)) {
+        return IPPROTO_ICMPV6;
+    } else if (len == 7 && !memcmp(p, "UDPLITE", 7)) {
+        return 136;
+    } else if (len == 4 && !memcmp(p, "SCTP", 4)) {
+        return 132;
+    }
+
+    /* unknown protocols are logged by number */
+    return kmsg_number(p, p + len);
+}
+
+static const char *kmsg_find(const char *line, const char *end, const char *text)
+{
+    size_t len = strlen(text);
+
+    for (; line + len <= end; line++) {
+        if (*line == *text && !memcmp(line, text, len)) {
+            return line;
+        }
+    }
+
+    return NULL;
+}
+
+/* kernel log time of a line in us since boot, or -1 if it has none:
+ * /dev/kmsg lines start "pri,seq,usec,flags;", /proc/kmsg lines "<pri>[sec.usec]" */
+static long long kmsg_boot_time(const char *p, const char *end)
+{
+    long long sec = 0, usec = 0;
+    int digits = 0;
+
+    if (p < end && *p == '<') {
+        while (p < end && *p != '>') {
+            p++;
+        }
+
+        if (end - p < 2 || p[1] != '[') {
+            return -1;
+        }
+
+        for (p += 2; p < end && *p == ' '; p++);
+        for (; p < end && *p >= '0' && *p <= '9'; p++) {
+            sec = sec * 10 + *p - '0';
+        }
+
+        if (p == end || *p++ != '.') {
+            return -1;
+        }
+
+        for (; p < end && *p >= '0' && *p <= '9' && digits < 6; p++, digits++) {
+            usec = usec * 10 + *p - '0';
+        }
+
+        for (; digits < 6; digits++) {
+            usec *= 10;
+        }
+
+        return sec * 1000000 + usec;
+    }
+
+    /* skip priority and sequence number */
+    for (digits = 0; digits < 2; digits++) {
+        while (p < end && *p != ',') {
+            p++;
+        }
+
+        if (p++ == end) {
+            return -1;
+        }
+    }
+
+    if (p == end || *p < '0' || *p > '9') {
+        return -1;
+    }
+
+    for (; p < end && *p >= '0' && *p <= '9'; p++) {
+        usec = usec * 10 + *p - '0';
+    }
+
+    return usec;
+}
+
+/* wall clock time of a kernel log line; the log clock does not count time
+ * suspended either, so it is converted by its distance from now on the
+ * monotonic clock.  Lines without a usable time get the current time */
+static int64_t kmsg_timestamp(const char *line, const char *end)
+{
+    long long boot_time = kmsg_boot_time(line, end);
+    long long now = monotonic_ms();
+
+    if (boot_time < 0 || boot_time / 1000 > now) {
+        return wallclock_ms();
+    }
+
+    return wallclock_ms() - (now - boot_time / 1000);
+}
+
+/* fills pkt from the KEY=value fields after the {NL} prefix; returns 0 if
+ * the line has no usable addresses.  Fields after '[' belong to the packet
+ * an ICMP error quotes, and the UDP header repeats LEN, so the first of
+ * each counts. */
+static int parse_kmsg_line(const char *p, const char *end, struct packet_info *pkt)
+{
+    int have_src = 0, have_dst = 0;
+    uint8_t family;
+
+    memset(pkt, 0, sizeof(*pkt));
+
+    while (p < end && *p != '[') {
+        const char *key = p, *equals = NULL, *value;
+        size_t key_len, len;
+
+        while (p < end && *p != ' ') {
+            if (!equals && *p == '=') {
+                equals = p;
+            }
+            p++;
+        }
+
+        if (equals) {
+            key_len = equals - key;
+            value = equals + 1;
+            len = p - value;
+
+#define KMSG_KEY(name) (key_len == sizeof(name) - 1 && !memcmp(key, name, key_len))
+            if (KMSG_KEY("IN")) {
+                pkt->has_indev = kmsg_ifindex(value, len, &pkt->indev);
+            } else if (KMSG_KEY("OUT")) {
+                pkt->has_outdev = kmsg_ifindex(value, len, &pkt->outdev);
+            } else if (KMSG_KEY("SRC") && !have_src) {
+                have_src = kmsg_address(value, len, pkt->saddr, &pkt->family);
+            } else if (KMSG_KEY("DST") && !have_dst) {
+                have_dst = kmsg_address(value, len, pkt->daddr, &family);
+            } else if (KMSG_KEY("LEN") && !pkt->len) {
+                pkt->len = kmsg_number(value, p);
+            } else if (KMSG_KEY("PROTO")) {
+                pkt->protocol = kmsg_protocol(value, len);
+            } else if (KMSG_KEY("SPT")) {
+                pkt->sport = kmsg_number(value, p);
+                pkt->has_transport = 1;
+            } else if (KMSG_KEY("DPT")) {
+                pkt->dport = kmsg_number(value, p);
+                pkt->has_transport = 1;
+            } else if (KMSG_KEY("UID")) {
+                pkt->uid = kmsg_number(value, p);
+                pkt->has_uid = 1;
+            }
+#undef KMSG_KEY
+        }
+
+        while (p < end && *p == ' ') {
+            p++;
+        }
+    }
+
+    pkt->has_payload = have_src && have_dst;
+    return pkt->has_payload;
+}
+
+/* printk rate limiting reports the LOG lines it dropped as e.g.
+ * "net_ratelimit: 12 callbacks suppressed"; returns the count */
+static uint32_t kmsg_suppressed(const char *line, const char *end)
+{
+    const char *suppressed = kmsg_find(line, end, " suppressed");
+    const char *p;
+
+    if (!suppressed) {
+        return 0;
+    }
+
+    /* the number precedes the "callbacks"/"messages" word */
+    p = suppressed - 1;
+    while (p > line && *p != ' ') {
+        p--;
+    }
+    while (p > line && *(p - 1) >= '0' && *(p - 1) <= '9') {
+        p--;
+    }
+
+    return kmsg_number(p, end);
+}
+
+static void handle_kmsg_line(const char *line, const char *end)
+{
+    struct packet_info pkt;
+    const char *prefix;
+
+    messages_received++;
+    bytes_received += end - line + 1;
+
+    prefix = kmsg_find(line, end, "{NL}");
+
+    if (!prefix) {
+        /* lines the kernel dropped count as lost */
+        overruns += kmsg_suppressed(line, end);
+        return;
+    }
+
+    if (!parse_kmsg_line(prefix + 4, end, &pkt)) {
+        return;
+    }
+
+    pkt.timestamp = kmsg_timestamp(line, prefix);
+    packets_logged++;
+
+    if (aggregate_interval) {
+        update_flow(&pkt);
+        return;
+    }
+
+    write_packet_binary(&pkt);
+    output_written();
+}
+
+static void run_kmsg(const char *path, int watch_fd)
+{
+    size_t used = 0;
+    int fd, ret;
+
+    fd = open(path, O_RDONLY | O_NONBLOCK);
+
+    if (fd < 0) {
+        perror(path);
+        exit(EXIT_FAILURE);
+    }
+
+    /* /dev/kmsg starts at the oldest record; only new ones are wanted
+     * (/proc/kmsg ignores this and returns only unread lines) */
+    lseek(fd, 0, SEEK_END);
+    write_ready();
+
+    while (1) {
+        char *start, *newline;
+        ssize_t count;
+
+        ret = wait_for_input(fd, next_timeout(), watch_fd);
+
+        if (ret == 0) {
+            exit(EXIT_SUCCESS);
+        }
+
+        if (ret < 0) {
+            run_timers();
+            continue;
+        }
+
+        count = read(fd, kmsg_buffer + used, KMSG_BUFFER_SIZE - used);
+
+        if (count < 0) {
+            if (errno == EAGAIN || errno == EINTR) {
+                continue;
+            }
+
+            if (errno == EPIPE) {
+                /* /dev/kmsg overwrote records before we read them */
+                overruns++;
+                continue;
+            }
+
+            perror("read");
+            exit(EXIT_FAILURE);
+        }
+
+        if (count == 0) {
+            fprintf(stderr, "nflog: end of %s\n", path);
+            exit(EXIT_FAILURE);
+        }
+
+        used += count;
+        start = kmsg_buffer;
+
+        while ((newline = memchr(start, '\n', kmsg_buffer + used - start)) != NULL) {
+            handle_kmsg_line(start, newline);
+            start = newline + 1;
+        }
+
+        used -= start - kmsg_buffer;
+        memmove(kmsg_buffer, start, used);
+
+        if (used == KMSG_BUFFER_SIZE) {
+            /* no line is this long; drop it rather than stall */
+            truncated++;
+            used = 0;
+        }
+
+        run_timers();
+    }
+}
+
+/* reads and dispatches netlink messages to cb until the service stops us;
+ * portid 0 accepts messages with any sender port id */
+static void receive_loop(unsigned int portid, mnl_cb_t cb, int watch_fd)
+{
+    int ret, i;
+
+    while (1) {
+        int timeout = next_timeout();
+
+        if (watch_fd >= 0 || timeout >= 0) {
+            ret = wait_for_input(mnl_socket_get_fd(nl), timeout, watch_fd);
+
+            if (ret == 0) {
+                /* stdin or the socket was closed; the service wants us to stop */
+                exit(EXIT_SUCCESS);
+            }
+
+            if (ret < 0) {
+                /* a flush or sweep deadline passed with no new packets */
+                run_timers();
+                continue;
+            }
+        }
+
+        ret = receive_batch(mnl_socket_get_fd(nl));
+        if (ret == -1) {
+            if (errno == ENOBUFS) {
+                /* socket buffer overran; the kernel dropped messages */
+                overruns++;
+                continue;
+            } else if (errno == EINTR) {
+                continue;
+            } else {
+                perror("recvmmsg");
+                exit(EXIT_FAILURE);
+            }
+        }
+
+        for (i = 0; i < ret; i++) {
+            messages_received++;
+            bytes_received += recv_msgs[i].len;
+
+            if (recv_msgs[i].hdr.msg_flags & MSG_TRUNC) {
+                truncated++;
+                continue;
+            }
+
+            if (recv_addr[i].nl_pid != 0) {
+                /* not from the kernel */
+                continue;
+            }
+
+            if (mnl_cb_run(recv_iov[i].iov_base, recv_msgs[i].len, 0, portid, cb, NULL) < 0) {
+                perror("mnl_cb_run");
+                exit(EXIT_FAILURE);
+            }
+        }
+
+        run_timers();
+    }
+}
+
+/* conntrack mode (-c): one record per connection from ctnetlink NEW and
+ * DESTROY events instead of one per packet; the counters come from
+ * conntrack accounting */
+struct ct_table {
+    const struct nlattr **tb;
+    int max;
+};
+
+static int ct_attr_cb(const struct nlattr *attr, void *data)
+{
+    struct ct_table *table = data;
+
+    /* skip attributes newer than our headers */
+    if (mnl_attr_type_valid(attr, table->max) < 0)
+        return MNL_CB_OK;
+
+    table->tb[mnl_attr_get_type(attr)] = attr;
+    return MNL_CB_OK;
+}
+
+static uint64_t ct_get_u64(const struct nlattr *attr)
+{
+    if (mnl_attr_get_payload_len(attr) < 8) {
+        return 0;
+    }
+
+    return get_be64(mnl_attr_get_payload(attr));
+}
+
+static int ct_parse_addresses(const struct nlattr *nest, struct packet_info *pkt)
+{
+    const struct nlattr *tb[CTA_IP_MAX + 1] = {};
+    struct ct_table table = { tb, CTA_IP_MAX };
+    int src = CTA_IP_V4_SRC, dst = CTA_IP_V4_DST, size = 4;
+
+    mnl_attr_parse_nested(nest, ct_attr_cb, &table);
+
+    pkt->family = 4;
+
+    if (!tb[src]) {
+        src = CTA_IP_V6_SRC;
+        dst = CTA_IP_V6_DST;
+        size = 16;
+        pkt->family = 6;
+    }
+
+    if (!tb[src] || !tb[dst] || mnl_attr_get_payload_len(tb[src]) < size
+            || mnl_attr_get_payload_len(tb[dst]) < size) {
+        return 0;
+    }
+
+    memcpy(pkt->saddr, mnl_attr_get_payload(tb[src]), size);
+    memcpy(pkt->daddr, mnl_attr_get_payload(tb[dst]), size);
+    return 1;
+}
+
+/* a tuple is one direction of a connection, as the packets going that way
+ * are addressed */
+static int ct_parse_tuple(const struct nlattr *nest, struct packet_info *pkt)
+{
+    const struct nlattr *tb[CTA_TUPLE_MAX + 1] = {};
+    const struct nlattr *proto[CTA_PROTO_MAX + 1] = {};
+    struct ct_table table = { tb, CTA_TUPLE_MAX };
+    struct ct_table proto_table = { proto, CTA_PROTO_MAX };
+
+    memset(pkt, 0, sizeof(*pkt));
+
+    if (!nest) {
+        return 0;
+    }
+
+    mnl_attr_parse_nested(nest, ct_attr_cb, &table);
+
+    if (!tb[CTA_TUPLE_IP] || !tb[CTA_TUPLE_PROTO] || !ct_parse_addresses(tb[CTA_TUPLE_IP], pkt)) {
+        return 0;
+    }
+
+    mnl_attr_parse_nested(tb[CTA_TUPLE_PROTO], ct_attr_cb, &proto_table);
+
+    if (!proto[CTA_PROTO_NUM]) {
+        return 0;
+    }
+
+    pkt->has_payload = 1;
+    pkt->protocol = mnl_attr_get_u8(proto[CTA_PROTO_NUM]);
+
+    if (proto[CTA_PROTO_SRC_PORT] && proto[CTA_PROTO_DST_PORT]) {
+        pkt->has_transport = 1;
+        pkt->sport = ntohs(mnl_attr_get_u16(proto[CTA_PROTO_SRC_PORT]));
+        pkt->dport = ntohs(mnl_attr_get_u16(proto[CTA_PROTO_DST_PORT]));
+    }
+
+    return 1;
+}
+
+static void ct_get_counters(const struct nlattr *nest, uint64_t *packets, uint64_t *bytes)
+{
+    const struct nlattr *tb[CTA_COUNTERS_MAX + 1] = {};
+    struct ct_table table = { tb, CTA_COUNTERS_MAX };
+
+    *packets = *bytes = 0;
+
+    if (!nest) {
+        return;
+    }
+
+    mnl_attr_parse_nested(nest, ct_attr_cb, &table);
+
+    if (tb[CTA_COUNTERS_PACKETS] && tb[CTA_COUNTERS_BYTES]) {
+        *packets = ct_get_u64(tb[CTA_COUNTERS_PACKETS]);
+        *bytes = ct_get_u64(tb[CTA_COUNTERS_BYTES]);
+    } else if (tb[CTA_COUNTERS32_PACKETS] && tb[CTA_COUNTERS32_BYTES]) {
+        /* kernels before 2.6.27 */
+        *packets = ntohl(mnl_attr_get_u32(tb[CTA_COUNTERS32_PACKETS]));
+        *bytes = ntohl(mnl_attr_get_u32(tb[CTA_COUNTERS32_BYTES]));
+    }
+}
+
+static int ct_is_loopback(const struct packet_info *pkt)
+{
+    static const uint8_t loopback6[16] = { [15] = 1 };
+
+    if (pkt->family == 4) {
+        return pkt->saddr[0] == 127;
+    }
+
+    return !memcmp(pkt->saddr, loopback6, 16);
+}
+
+/* conntrack does not say which end is this device; an address is ours if
+ * a socket can be bound to it */
+static int is_local_address(uint8_t family, const uint8_t *addr)
+{
+    struct sockaddr_in sin;
+    struct sockaddr_in6 sin6;
+    struct sockaddr *sa;
+    socklen_t length;
+    int fd, local;
+
+    if (family == 4) {
+        memset(&sin, 0, sizeof(sin));
+        sin.sin_family = AF_INET;
+        memcpy(&sin.sin_addr, addr, 4);
+        sa = (struct sockaddr *) &sin;
+        length = sizeof(sin);
+    } else {
+        memset(&sin6, 0, sizeof(sin6));
+        sin6.sin6_family = AF_INET6;
+        memcpy(&sin6.sin6_addr, addr, 16);
+        sa = (struct sockaddr *) &sin6;
+        length = sizeof(sin6);
+    }
+
+    fd = socket(sa->sa_family, SOCK_DGRAM, 0);
+
+    if (fd < 0) {
+        return 0;
+    }
+
+    local = bind(fd, sa, length) == 0;
+    close(fd);
+    return local;
+}
+
+static void write_connection_record(const struct packet_info *pkt, uint8_t direction,
+        uint64_t packets, uint64_t bytes, int64_t first_seen, int64_t last_seen)
+{
+    uint8_t rec[NLREC_FLOW_SIZE];
+
+    nlrec_header(rec, NLREC_FLOW, pkt->family, NLREC_FLOW_SIZE);
+    put_packet_fields(rec, pkt);
+    rec[5] = direction;
+    nlrec_put_u64(rec + 16, last_seen);
+    nlrec_put_u32(rec + 32, packets > 0xFFFFFFFF ? 0xFFFFFFFF : (uint32_t) packets);
+    nlrec_put_u64(rec + 72, bytes);
+    nlrec_put_u64(rec + 80, first_seen);
+
+    fwrite(rec, 1, sizeof(rec), stdout);
+}
+
+static int conntrack_cb(const struct nlmsghdr *nlh, void *data)
+{
+    const struct nlattr *tb[CTA_MAX + 1] = {};
+    struct ct_table table = { tb, CTA_MAX };
+    struct packet_info orig, reply;
+    const struct packet_info *sent, *received;
+    uint64_t orig_packets, orig_bytes, reply_packets, reply_bytes;
+    int64_t first_seen, last_seen;
+    int outbound;
+
+    if ((nlh->nlmsg_type >> 8) != NFNL_SUBSYS_CTNETLINK) {
+        return MNL_CB_OK;
+    }
+
+    mnl_attr_parse(nlh, sizeof(struct nfgenmsg), ct_attr_cb, &table);
+
+    if (!ct_parse_tuple(tb[CTA_TUPLE_ORIG], &orig) || !ct_parse_tuple(tb[CTA_TUPLE_REPLY], &reply)
+            || ct_is_loopback(&orig)) {
+        return MNL_CB_OK;
+    }
+
+    packets_logged++;
+
+    /* connections between two other hosts (forwarded) count as sent */
+    outbound = is_local_address(orig.family, orig.saddr)
+        || !is_local_address(orig.family, orig.daddr);
+    sent = outbound ? &orig : &reply;
+    received = outbound ? &reply : &orig;
+    last_seen = first_seen = wallclock_ms();
+
+    switch (nlh->nlmsg_type & 0xff) {
+        case IPCTNL_MSG_CT_NEW:
+            /* lets the service look up the uid while the socket exists */
+            write_connection_record(sent, NLREC_DIR_OUT, 0, 0, first_seen, last_seen);
+            break;
+
+        case IPCTNL_MSG_CT_DELETE:
+            ct_get_counters(tb[CTA_COUNTERS_ORIG], &orig_packets, &orig_bytes);
+            ct_get_counters(tb[CTA_COUNTERS_REPLY], &reply_packets, &reply_bytes);
+
+            if (tb[CTA_TIMESTAMP]) {
+                const struct nlattr *ts[CTA_TIMESTAMP_MAX + 1] = {};
+                struct ct_table ts_table = { ts, CTA_TIMESTAMP_MAX };
+
+                mnl_attr_parse_nested(tb[CTA_TIMESTAMP], ct_attr_cb, &ts_table);
+
+                /* nanoseconds since the epoch */
+                if (ts[CTA_TIMESTAMP_START]) {
+                    first_seen = ct_get_u64(ts[CTA_TIMESTAMP_START]) / 1000000;
+                }
+
+                if (ts[CTA_TIMESTAMP_STOP]) {
+                    last_seen = ct_get_u64(ts[CTA_TIMESTAMP_STOP]) / 1000000;
+                }
+            }
+
+            if (!tb[CTA_COUNTERS_ORIG] && !tb[CTA_COUNTERS_REPLY]) {
+                /* no accounting; still report that the connection happened */
+                orig_packets = 1;
+            }
+
+            if (outbound ? orig_packets : reply_packets) {
+                write_connection_record(sent, NLREC_DIR_OUT, outbound ? orig_packets : reply_packets,
+                        outbound ? orig_bytes : reply_bytes, first_seen, last_seen);
+            }
+
+            if (outbound ? reply_packets : orig_packets) {
+                write_connection_record(received, NLREC_DIR_IN, outbound ? reply_packets : orig_packets,
+                        outbound ? reply_bytes : orig_bytes, first_seen, last_seen);
+            }
+            break;
+
+        default:
+            return MNL_CB_OK;
+    }
+
+    output_written();
+    return MNL_CB_OK;
+}
+
+/* accounting and timestamps are off by default and only apply to
+ * connections created after they are turned on */
+static void enable_conntrack_feature(const char *name)
+{
+    char path[64];
+    int fd;
+
+    snprintf(path, sizeof(path), "/proc/sys/net/netfilter/%s", name);
+    fd = open(path, O_WRONLY);
+
+    if (fd < 0 || write(fd, "1\n", 2) != 2) {
+        fprintf(stderr, "nflog: unable to enable %s: %s\n", name, strerror(errno));
+    }
+
+    if (fd >= 0) {
+        close(fd);
+    }
+}
+
+static void run_conntrack(int rcvbuf, int watch_fd)
+{
+    enable_conntrack_feature("nf_conntrack_acct");
+    enable_conntrack_feature("nf_conntrack_timestamp");
+
+    nl = mnl_socket_open(NETLINK_NETFILTER);
+    if (nl == NULL) {
+        perror("mnl_socket_open");
+        exit(EXIT_FAILURE);
+    }
+
+    if (mnl_socket_bind(nl, NF_NETLINK_CONNTRACK_NEW | NF_NETLINK_CONNTRACK_DESTROY,
+                MNL_SOCKET_AUTOPID) < 0) {
+        perror("mnl_socket_bind");
+        exit(EXIT_FAILURE);
+    }
+
+    if (rcvbuf > 0) {
+        set_receive_buffer(mnl_socket_get_fd(nl), rcvbuf);
+    }
+
+    if (recv_size < (size_t) MNL_SOCKET_BUFFER_SIZE) {
+        recv_size = MNL_SOCKET_BUFFER_SIZE;
+    }
+
+    init_receive();
+    write_ready();
+
+    /* events caused by another ctnetlink user carry its port id */
+    receive_loop(0, conntrack_cb, watch_fd);
+}
+
+/* uid resolver (-D): answers the NLREC_QUERY records read from stdin with
+ * NLREC_OWNER records, asking sock_diag for the socket that owns each
+ * flow.  Queries that arrive together go to the kernel as one batch */
+#define RESOLVER_BATCH 64
+#define RESOLVER_TIMEOUT_MS 1000
+
+struct resolver_query {
+    uint8_t rec[NLREC_QUERY_SIZE];
+    int32_t uid;
+    int preferred;              /* uid came from the preferred request */
+};
+
+static struct resolver_query resolver_queries[RESOLVER_BATCH];
+static char resolver_buffer[RESOLVER_BATCH * 2 * 128];
+
+/* an exact-match request for the socket with the query's addresses, or
+ * with source and destination swapped if reverse */
+static struct nlmsghdr *resolver_request(char *buf, uint32_t seq, const uint8_t *rec, int reverse)
+{
+    struct nlmsghdr *nlh;
+    struct inet_diag_req_v2 *req;
+    int family = rec[1] == 6 ? AF_INET6 : AF_INET;
+    int addr_len = family == AF_INET6 ? 16 : 4;
+    const uint8_t *src = rec + (reverse ? 32 : 16);
+    const uint8_t *dst = rec + (reverse ? 16 : 32);
+    uint16_t sport = nlrec_get_u16(rec + (reverse ? 8 : 6));
+    uint16_t dport = nlrec_get_u16(rec + (reverse ? 6 : 8));
+
+    nlh = mnl_nlmsg_put_header(buf);
+    nlh->nlmsg_type = SOCK_DIAG_BY_FAMILY;
+    nlh->nlmsg_flags = NLM_F_REQUEST;
+    nlh->nlmsg_seq = seq;
+
+    req = mnl_nlmsg_put_extra_header(nlh, sizeof(*req));
+    req->sdiag_family = family;
+    req->sdiag_protocol = rec[4];
+    req->idiag_states = ~0U;
+    req->id.idiag_sport = htons(sport);
+    req->id.idiag_dport = htons(dport);
+    memcpy(req->id.idiag_src, src, addr_len);
+    memcpy(req->id.idiag_dst, dst, addr_len);
+    req->id.idiag_cookie[0] = INET_DIAG_NOCOOKIE;
+    req->id.idiag_cookie[1] = INET_DIAG_NOCOOKIE;
+    return nlh;
+}
+
+/* the logged source may be either end, so both directions are asked; a
+ * request takes its source as the local end for TCP but, for historical
+ * reasons, as the remote end for UDP.  Where both ends are local, the
+ * socket that sent the packet wins */
+static void resolve_batch(int count)
+{
+    static uint32_t seq = 0;
+    char buf[MNL_SOCKET_BUFFER_SIZE];
+    size_t len = 0;
+    uint32_t first;
+    int pending = count * 2;
+    int i;
+
+    first = seq;
+
+    for (i = 0; i < count; i++) {
+        resolver_queries[i].uid = -1;
+        resolver_queries[i].preferred = 0;
+        len += resolver_request(resolver_buffer + len, seq++, resolver_queries[i].rec, 0)->nlmsg_len;
+        len += resolver_request(resolver_buffer + len, seq++, resolver_queries[i].rec, 1)->nlmsg_len;
+    }
+
+    if (mnl_socket_sendto(nl, resolver_buffer, len) < 0) {
+        perror("mnl_socket_sendto");
+        return;
+    }
+
+    while (pending > 0 && wait_for_input(mnl_socket_get_fd(nl), RESOLVER_TIMEOUT_MS, -1) > 0) {
+        ssize_t ret = mnl_socket_recvfrom(nl, buf, sizeof(buf));
+        const struct nlmsghdr *nlh = (const struct nlmsghdr *) buf;
+        int remaining;
+
+        if (ret < 0) {
+            if (errno == ENOBUFS) {
+                overruns++;
+                continue;
+            }
+            perror("mnl_socket_recvfrom");
+            return;
+        }
+
+        remaining = ret;
+
+        /* every request gets one reply, the socket or an error */
+        for (; mnl_nlmsg_ok(nlh, remaining); nlh = mnl_nlmsg_next(nlh, &remaining)) {
+            uint32_t index = nlh->nlmsg_seq - first;
+            struct resolver_query *query;
+            const struct inet_diag_msg *msg;
+            int preferred;
+
+            if (index >= (uint32_t) count * 2) {
+                continue;
+            }
+
+            pending--;
+
+            if (nlh->nlmsg_type != SOCK_DIAG_BY_FAMILY
+                    || mnl_nlmsg_get_payload_len(nlh) < sizeof(*msg)) {
+                continue;
+            }
+
+            query = &resolver_queries[index / 2];
+            msg = mnl_nlmsg_get_payload(nlh);
+            preferred = (index & 1) == (query->rec[4] == IPPROTO_UDP);
+
+            if (query->uid == -1 || (preferred && !query->preferred)) {
+                query->uid = msg->idiag_uid;
+                query->preferred = preferred;
+            }
+        }
+    }
+
+    if (pending > 0) {
+        fprintf(stderr, "nflog: %d sock_diag replies missing\n", pending);
+    }
+}
+
+static void write_owners(int count)
+{
+    uint8_t rec[NLREC_OWNER_SIZE];
+    int i;
+
+    for (i = 0; i < count; i++) {
+        nlrec_header(rec, NLREC_OWNER, 0, NLREC_OWNER_SIZE);
+        memcpy(rec + 4, resolver_queries[i].rec + 12, 4);
+        nlrec_put_u32(rec + 8, (uint32_t) resolver_queries[i].uid);
+        fwrite(rec, 1, sizeof(rec), stdout);
+    }
+
+    fflush(stdout);
+}
+
+static void run_resolver(void)
+{
+    static uint8_t input[RESOLVER_BATCH * NLREC_QUERY_SIZE];
+    size_t length = 0;
+
+    nl = mnl_socket_open(NETLINK_SOCK_DIAG);
+    if (nl == NULL) {
+        perror("mnl_socket_open");
         exit(EXIT_FAILURE);
     }
 
@@ -320,21 +2100,247 @@ int main(int argc, char *argv[])
         perror("mnl_socket_bind");
         exit(EXIT_FAILURE);
     }
-    portid = mnl_socket_get_portid(nl);
 
-    nlh = nflog_build_cfg_pf_request(buf, NFULNL_CFG_CMD_PF_UNBIND);
+    write_ready();
 
-    if (mnl_socket_sendto(nl, nlh, nlh->nlmsg_len) < 0) {
-        perror("mnl_socket_send");
+    while (1) {
+        ssize_t ret = read(STDIN_FILENO, input + length, sizeof(input) - length);
+        size_t pos = 0;
+        int count = 0;
+
+        if (ret < 0 && errno == EINTR) {
+            continue;
+        }
+
+        if (ret <= 0) {
+            /* the service closed stdin */
+            exit(EXIT_SUCCESS);
+        }
+
+        length += ret;
+
+        while (length - pos >= 4) {
+            uint16_t size = nlrec_get_u16(input + pos + 2);
+
+            if (size < 4 || size > sizeof(input)) {
+                fprintf(stderr, "nflog: bad query record size %u\n", size);
+                exit(EXIT_FAILURE);
+            }
+
+            if (length - pos < size) {
+                break;
+            }
+
+            /* a full buffer holds at most RESOLVER_BATCH queries */
+            if (input[pos] == NLREC_QUERY && size >= NLREC_QUERY_SIZE) {
+                memcpy(resolver_queries[count++].rec, input + pos, NLREC_QUERY_SIZE);
+            }
+
+            pos += size;
+        }
+
+        memmove(input, input + pos, length - pos);
+        length -= pos;
+
+        if (count > 0) {
+            resolve_batch(count);
+            write_owners(count);
+        }
+    }
+}
+
+void cleanup(void) {
+  if(nl != 0)
+    mnl_socket_close(nl);
+  free_net_devices();
+  if(overruns || truncated)
+    fprintf(stderr, "nflog: %llu overruns, %llu truncated messages\n",
+        (unsigned long long) overruns, (unsigned long long) truncated);
+}
+
+int main(int argc, char *argv[])
+{
+    char buf[MNL_SOCKET_BUFFER_SIZE];
+    struct nlmsghdr *nlh;
+    int opt, i;
+    unsigned int portid, qnum;
+    int copy_range = 0xFFFF;
+    unsigned int qthresh = 0;
+    int timeout = -1;
+    int rcvbuf = 0;
+    const char *socket_name = NULL;
+    const char *kmsg_path = NULL;
+    int conntrack = 0;
+    int resolver = 0;
+    int watch_fd = -1;
+
+    atexit(cleanup);
+
+    while ((opt = getopt(argc, argv, "a:bB:cDf:Hi:k:q:r:s:t:u:V")) != -1) {
+        switch (opt) {
+            case 'c':
+                /* connection records from conntrack events instead */
+                conntrack = 1;
+                break;
+            case 'D':
+                /* answer uid queries from stdin instead */
+                resolver = 1;
+                break;
+            case 'k':
+                /* read LOG target lines from this kernel log instead */
+                kmsg_path = optarg;
+                break;
+            case 'u':
+                /* write output to this abstract unix socket */
+                socket_name = optarg;
+                break;
+            case 's':
+                /* capture statistics every this many seconds */
+                stats_interval = atoi(optarg);
+                if (stats_interval < 0) {
+                    stats_interval = 0;
+                }
+                break;
+            case 'B':
+                /* bytes per netlink message; larger ones carry more packets */
+                if (atoi(optarg) > 0) {
+                    recv_size = atoi(optarg);
+                }
+                break;
+            case 'r':
+                /* socket receive buffer, to ride out bursts */
+                rcvbuf = atoi(optarg);
+                break;
+            case 'a':
+                /* per-flow NLREC_FLOW summaries every this many seconds */
+                aggregate_interval = atoi(optarg);
+                break;
+            case 'i':
+                /* seconds without packets before a flow is reported and dropped */
+                idle_timeout = atoi(optarg);
+                break;
+            case 'b':
+                /* binary records (see nlrecord.h); exit when stdin closes */
+                binary_output = 1;
+                break;
+            case 'f':
+                /* buffer output; flush per receive batch at most this often */
+                flush_latency = atoi(optarg);
+                if (flush_latency < 0) {
+                    flush_latency = 0;
+                }
+                break;
+            case 'H':
+                /* copy only the headers log_cb needs */
+                copy_range = HEADER_COPY_RANGE;
+                break;
+            case 'q':
+                /* number of packets the kernel queues before sending a batch */
+                qthresh = atoi(optarg);
+                break;
+            case 't':
+                /* milliseconds before the kernel flushes a partial batch */
+                timeout = atoi(optarg);
+                break;
+            case 'V':
+                puts(HELPER_VERSION);
+                exit(EXIT_SUCCESS);
+            default:
+                optind = argc;
+                break;
+        }
+    }
+
+    if ((optind != argc - 1 && !((kmsg_path || conntrack || resolver) && optind == argc)) || aggregate_interval < 0
+            || (aggregate_interval && !binary_output) || (kmsg_path && !binary_output)
+            || (conntrack && (!binary_output || kmsg_path || aggregate_interval))
+            || (resolver && (!binary_output || kmsg_path || conntrack || aggregate_interval || socket_name))) {
+        printf("Usage: %s [-b [-a summary_interval_s [-i idle_timeout_s]] [-k kmsg_path | -c | -D]] [-B message_buffer_size] [-f flush_latency_ms] [-H] [-q queue_threshold] [-r socket_buffer_size] [-s stats_interval_s] [-t flush_timeout_ms] [-u socket_name] [queue_num]\n       %s -V\n", argv[0], argv[0]);
         exit(EXIT_FAILURE);
     }
 
-    nlh = nflog_build_cfg_pf_request(buf, NFULNL_CFG_CMD_PF_BIND);
+    if (aggregate_interval) {
+        if (idle_timeout <= 0 || idle_timeout > aggregate_interval) {
+            idle_timeout = aggregate_interval < 10 ? aggregate_interval : 10;
+        }
 
-    if (mnl_socket_sendto(nl, nlh, nlh->nlmsg_len) < 0) {
-        perror("mnl_socket_send");
+        init_flows();
+        next_sweep = monotonic_ms() + FLOW_SWEEP_MS;
+        next_summary = monotonic_ms() + aggregate_interval * 1000LL;
+    }
+    if (socket_name) {
+        connect_output_socket(socket_name);
+        watch_fd = STDOUT_FILENO;
+    } else if (binary_output) {
+        watch_fd = STDIN_FILENO;
+    }
+
+    if (stats_interval) {
+        next_stats = monotonic_ms() + stats_interval * 1000LL;
+    }
+
+    if (flush_latency >= 0) {
+        setvbuf(stdout, output_buffer, _IOFBF, OUTPUT_BUFFER_SIZE);
+        last_flush = monotonic_ms();
+    }
+
+    if (resolver) {
+        run_resolver();
+    }
+
+    if (kmsg_path) {
+        run_kmsg(kmsg_path, watch_fd);
+    }
+
+    if (conntrack) {
+        run_conntrack(rcvbuf, watch_fd);
+    }
+
+    qnum = atoi(argv[optind]);
+
+    nl = mnl_socket_open(NETLINK_NETFILTER);
+    if (nl == NULL) {
+        perror("mnl_socket_open");
+        exit(EXIT_FAILURE);
+    }
+
+    if (mnl_socket_bind(nl, 0, MNL_SOCKET_AUTOPID) < 0) {
+        perror("mnl_socket_bind");
         exit(EXIT_FAILURE);
     }
+    portid = mnl_socket_get_portid(nl);
+
+    if (rcvbuf > 0) {
+        set_receive_buffer(mnl_socket_get_fd(nl), rcvbuf);
+    }
+
+    if (recv_size < (size_t) MNL_SOCKET_BUFFER_SIZE) {
+        recv_size = MNL_SOCKET_BUFFER_SIZE;
+    }
+
+    init_receive();
+
+    /* rebinding the family handler is global; when several helpers read
+     * separate groups, only the one for group 0 does it so the others do
+     * not briefly unbind logging for the whole family */
+    for (i = 0; i < 2 && qnum == 0; i++) {
+        /* a kernel without IPv6 nflog support ignores the AF_INET6 bind */
+        uint8_t family = i == 0 ? AF_INET : AF_INET6;
+
+        nlh = nflog_build_cfg_pf_request(buf, NFULNL_CFG_CMD_PF_UNBIND, family);
+
+        if (mnl_socket_sendto(nl, nlh, nlh->nlmsg_len) < 0) {
+            perror("mnl_socket_send");
+            exit(EXIT_FAILURE);
+        }
+
+        nlh = nflog_build_cfg_pf_request(buf, NFULNL_CFG_CMD_PF_BIND, family);
+
+        if (mnl_socket_sendto(nl, nlh, nlh->nlmsg_len) < 0) {
+            perror("mnl_socket_send");
+            exit(EXIT_FAILURE);
+        }
+    }
 
     nlh = nflog_build_cfg_request(buf, NFULNL_CFG_CMD_BIND, qnum);
 
@@ -343,46 +2349,34 @@ int main(int argc, char *argv[])
         exit(EXIT_FAILURE);
     }
 
-    nlh = nflog_build_cfg_params(buf, NFULNL_COPY_PACKET, 0xFFFF, qnum);
+    nlh = nflog_build_cfg_params(buf, NFULNL_COPY_PACKET, copy_range, qnum);
 
     if (mnl_socket_sendto(nl, nlh, nlh->nlmsg_len) < 0) {
         perror("mnl_socket_send");
         exit(EXIT_FAILURE);
     }
 
-    ret = mnl_socket_recvfrom(nl, buf, sizeof(buf));
-    if (ret == -1) {
-        if(errno == ENOSPC || errno == ENOBUFS)  {
-          /* ignore these (hopefully) recoverable errors */
-        } else {
-          perror("mnl_socket_recvfrom");
-          exit(EXIT_FAILURE);
+    if (qthresh > 1 || timeout >= 0) {
+        nlh = nflog_build_cfg_batching(buf, qthresh, timeout, qnum);
+
+        if (mnl_socket_sendto(nl, nlh, nlh->nlmsg_len) < 0) {
+            perror("mnl_socket_send");
+            exit(EXIT_FAILURE);
         }
     }
-    
-    while (1) {
-      if (ret == -1) {
-        /* reset ret and skip mnl_cb_run if previous recvfrom had an error */
-        ret = 0;
-      } else {
-        ret = mnl_cb_run(buf, ret, 0, portid, log_cb, NULL);
-        if (ret < 0) {
-          perror("mnl_cb_run");
-          exit(EXIT_FAILURE);
-        }
-      }
 
-      ret = mnl_socket_recvfrom(nl, buf, sizeof(buf));
-      if (ret == -1) {
-        if (errno == ENOSPC || errno == ENOBUFS) {
-          /* ignore these (hopefully) recoverable errors */
-          continue;
-        } else {
-          perror("mnl_socket_recvfrom");
-          exit(EXIT_FAILURE);
+    if (recv_size > (size_t) MNL_SOCKET_BUFFER_SIZE) {
+        /* let the kernel fill messages up to our buffer size */
+        nlh = nflog_build_cfg_nlbufsiz(buf,
+                recv_size < MAX_KERNEL_NLBUFSIZ ? recv_size : MAX_KERNEL_NLBUFSIZ, qnum);
+
+        if (mnl_socket_sendto(nl, nlh, nlh->nlmsg_len) < 0) {
+            perror("mnl_socket_send");
+            exit(EXIT_FAILURE);
         }
-      }
     }
 
+    write_ready();
+    receive_loop(portid, log_cb, watch_fd);
     return 0;
 }
@@ -0,0 +1,145 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+*/
+
+/* Binary record stream written by the logger helpers in binary output mode
+ * and read by com.googlecode.networklog.BinaryLogReader.
+ *
+ * Every record is fixed-layout and little-endian, and starts with a four
+ * byte header: type (u8), family/flags (u8), total record size (u16).
+ * Readers skip record types they do not know by their size.
+ *
+ * NLREC_PACKET (72 bytes)
+ *    0  u8      type
+ *    1  u8      address family (4 or 6)
+ *    2  u16     size
+ *    4  u8      ip protocol
+ *    5  u8      reserved
+ *    6  u16     source port
+ *    8  u16     destination port
+ *   10  u16     reserved
+ *   12  s32     uid (-1 if unknown)
+ *   16  s64     timestamp (milliseconds since epoch)
+ *   24  u32     input interface index (0 if none)
+ *   28  u32     output interface index (0 if none)
+ *   32  u32     ip packet length
+ *   36  u32     reserved
+ *   40  u8[16]  source address (IPv4 uses the first 4 bytes)
+ *   56  u8[16]  destination address
+ *
+ * NLREC_FLOW (88 bytes), a per-flow summary in aggregation mode; same
+ * layout as NLREC_PACKET except for:
+ *   16  s64     timestamp of the last packet in the interval
+ *   32  u32     packet count
+ *   72  u64     byte count (sum of ip packet lengths)
+ *   80  s64     timestamp of the first packet in the interval
+ * Conntrack mode (-c) writes one per direction when a connection closes,
+ * and one with a packet count of 0 when it opens.  Those have no
+ * interfaces; instead:
+ *    5  u8      direction, NLREC_DIR_IN or NLREC_DIR_OUT (0 otherwise)
+ *
+ * NLREC_STATS (48 bytes), periodic capture statistics, cumulative since
+ * the helper started
+ *    4  u32     reserved
+ *    8  u64     netlink messages received
+ *   16  u64     packets logged
+ *   24  u64     netlink bytes received
+ *   32  u64     overruns (ENOBUFS; messages the kernel dropped)
+ *   40  u64     truncated messages
+ *
+ * NLREC_READY (4 bytes, header only), written once when the helper is set
+ * up and logging; nothing else comes before it.  Text output has a
+ * "{NLREADY}" line instead
+ *
+ * NLREC_IFNAME (24 bytes), written before the first packet that uses ifindex
+ * once its name is known, and again if the name changes
+ *    0  u8      type
+ *    1  u8      reserved
+ *    2  u16     size
+ *    4  u32     interface index
+ *    8  char[16] interface name, NUL padded
+ *
+ * NLREC_QUERY (48 bytes), read by the uid resolver (-D): which uid owns
+ * the socket of this flow
+ *    1  u8      address family (4 or 6)
+ *    4  u8      ip protocol
+ *    6  u16     source port
+ *    8  u16     destination port
+ *   12  u32     query id
+ *   16  u8[16]  source address
+ *   32  u8[16]  destination address
+ *
+ * NLREC_OWNER (16 bytes), the resolver's answer to each query, in order
+ *    4  u32     query id
+ *    8  s32     uid (-1 if no socket matched)
+ *   12  u32     reserved
+ */
+
+#ifndef _NLRECORD_H
+#define _NLRECORD_H
+
+#include <stdint.h>
+#include <string.h>
+
+#define NLREC_PACKET        1
+#define NLREC_IFNAME        2
+#define NLREC_FLOW          3
+#define NLREC_STATS         4
+#define NLREC_READY         5
+#define NLREC_QUERY         6
+#define NLREC_OWNER         7
+
+#define NLREC_PACKET_SIZE   72
+#define NLREC_IFNAME_SIZE   24
+#define NLREC_FLOW_SIZE     88
+#define NLREC_STATS_SIZE    48
+#define NLREC_READY_SIZE    4
+#define NLREC_QUERY_SIZE    48
+#define NLREC_OWNER_SIZE    16
+
+#define NLREC_MAX_SIZE      88
+
+#define NLREC_DIR_IN        1
+#define NLREC_DIR_OUT       2
+
+static inline void nlrec_put_u16(uint8_t *p, uint16_t v)
+{
+    p[0] = v;
+    p[1] = v >> 8;
+}
+
+static inline void nlrec_put_u32(uint8_t *p, uint32_t v)
+{
+    p[0] = v;
+    p[1] = v >> 8;
+    p[2] = v >> 16;
+    p[3] = v >> 24;
+}
+
+static inline void nlrec_put_u64(uint8_t *p, uint64_t v)
+{
+    nlrec_put_u32(p, (uint32_t) v);
+    nlrec_put_u32(p + 4, (uint32_t) (v >> 32));
+}
+
+static inline uint16_t nlrec_get_u16(const uint8_t *p)
+{
+    return p[0] | p[1] << 8;
+}
+
+static inline uint32_t nlrec_get_u32(const uint8_t *p)
+{
+    return p[0] | p[1] << 8 | p[2] << 16 | (uint32_t) p[3] << 24;
+}
+
+static inline void nlrec_header(uint8_t *rec, uint8_t type, uint8_t flags, uint16_t size)
+{
+    memset(rec, 0, size);
+    rec[0] = type;
+    rec[1] = flags;
+    nlrec_put_u16(rec + 2, size);
+}
+
+#endif /* _NLRECORD_H */
@@ -0,0 +1,298 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+// Converts IPv4/IPv6 addresses from raw bytes, /proc/net hex and log text
+// into one canonical pooled String per address, without allocations once
+// the pool is warm.  IPv6 uses the RFC 5952 form (lowercase, no leading
+// zeros, longest zero run compressed); v4-mapped IPv6 addresses are
+// reduced to dotted IPv4 so both families key the same netstat entries.
+// Not thread-safe; each reader keeps its own instance.
+
+package com.googlecode.networklog;
+
+public class AddressFormatter {
+  static final String INVALID_ADDRESS = "-1.-1.-1.-1";
+
+  int[] groups = new int[8];
+  CharArray chars = new CharArray(64);
+
+  // family is 4 or 6; IPv4 uses the first 4 bytes at pos
+  public String format(byte[] buffer, int pos, int family) {
+    if(family != 6) {
+      return formatIPv4((buffer[pos] & 0xff) << 24 | (buffer[pos + 1] & 0xff) << 16
+          | (buffer[pos + 2] & 0xff) << 8 | (buffer[pos + 3] & 0xff));
+    }
+
+    for(int i = 0; i < 8; i++) {
+      groups[i] = (buffer[pos + i * 2] & 0xff) << 8 | (buffer[pos + i * 2 + 1] & 0xff);
+    }
+
+    return formatGroups();
+  }
+
+  // hex address as printed by /proc/net/{tcp,udp}{,6}: 8 digits for IPv4,
+  // 32 digits for IPv6, as 32-bit words in little-endian host order
+  public String formatProcHex(String hex) {
+    int length = hex.length();
+
+    if((length != 8 && length != 32) || !isHex(hex)) {
+      return INVALID_ADDRESS;
+    }
+
+    if(length == 8) {
+      return formatIPv4(Integer.reverseBytes(parseHexWord(hex, 0)));
+    }
+
+    for(int word = 0; word < 4; word++) {
+      int value = Integer.reverseBytes(parseHexWord(hex, word * 8));
+      groups[word * 2] = (value >>> 16) & 0xffff;
+      groups[word * 2 + 1] = value & 0xffff;
+    }
+
+    return formatGroups();
+  }
+
+  // canonical pooled form of the textual address in chars[start, end),
+  // e.g. the uncompressed IPv6 form logged by ip6t_LOG; the text as is if
+  // it is not an IPv6 address
+  public String canonicalize(char[] chars, int start, int end) {
+    for(int i = start; i < end; i++) {
+      if(chars[i] == ':') {
+        if(parseGroups(chars, start, end)) {
+          return formatGroups();
+        }
+        break;
+      }
+    }
+
+    return StringPool.get(chars, start, end - start);
+  }
+
+  // parses the textual address in chars[start, end) into groups, IPv4 as
+  // its v4-mapped IPv6 form; false if it is not an address
+  public boolean parse(char[] chars, int start, int end) {
+    for(int i = start; i < end; i++) {
+      if(chars[i] == ':') {
+        return parseGroups(chars, start, end);
+      }
+    }
+
+    groups[0] = groups[1] = groups[2] = groups[3] = groups[4] = 0;
+    groups[5] = 0xffff;
+    return parseIPv4Tail(chars, start, end, 6);
+  }
+
+  boolean parseGroups(char[] address, int pos, int end) {
+    int count = 0;
+    int compress = -1;
+
+    if(end - pos >= 2 && address[pos] == ':' && address[pos + 1] == ':') {
+      compress = 0;
+      pos += 2;
+    }
+
+    while(pos < end) {
+      int value = 0;
+      int digits = 0;
+      int start = pos;
+      char c;
+
+      while(pos < end && (c = address[pos]) != ':') {
+        if(c == '.') {
+          // embedded IPv4 tail, e.g. ::ffff:1.2.3.4
+          if(count > 6 || !parseIPv4Tail(address, start, end, count)) {
+            return false;
+          }
+          count += 2;
+          digits = -1;
+          pos = end;
+          break;
+        }
+
+        int digit = Character.digit(c, 16);
+
+        if(digit == -1 || ++digits > 4) {
+          return false;
+        }
+
+        value = (value << 4) | digit;
+        pos++;
+      }
+
+      if(digits == -1) {
+        break;
+      }
+
+      if(digits == 0 || count >= 8) {
+        return false;
+      }
+
+      groups[count++] = value;
+
+      if(pos < end) {
+        // skip ':' and note a "::"
+        pos++;
+
+        if(pos < end && address[pos] == ':') {
+          if(compress != -1) {
+            return false;
+          }
+          compress = count;
+          pos++;
+        } else if(pos == end) {
+          return false;
+        }
+      }
+    }
+
+    if(compress == -1) {
+      return count == 8;
+    }
+
+    if(count == 8) {
+      return false;
+    }
+
+    // move groups after "::" to the end and zero-fill the gap
+    int shift = 8 - count;
+    for(int i = count - 1; i >= compress; i--) {
+      groups[i + shift] = groups[i];
+    }
+
+    for(int i = compress; i < compress + shift; i++) {
+      groups[i] = 0;
+    }
+
+    return true;
+  }
+
+  boolean parseIPv4Tail(char[] address, int pos, int end, int index) {
+    int value = 0;
+
+    for(int octet = 0; octet < 4; octet++) {
+      int number = 0;
+      int digits = 0;
+      char c;
+
+      while(pos < end && (c = address[pos]) != '.') {
+        if(c < '0' || c > '9' || ++digits > 3) {
+          return false;
+        }
+        number = number * 10 + (c - '0');
+        pos++;
+      }
+
+      if(digits == 0 || number > 255 || (octet < 3 && pos >= end)) {
+        return false;
+      }
+
+      value = (value << 8) | number;
+      pos++;
+    }
+
+    if(pos != end + 1) {
+      return false;
+    }
+
+    groups[index] = (value >>> 16) & 0xffff;
+    groups[index + 1] = value & 0xffff;
+    return true;
+  }
+
+  static boolean isHex(String hex) {
+    for(int i = hex.length() - 1; i >= 0; i--) {
+      if(Character.digit(hex.charAt(i), 16) == -1) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static int parseHexWord(String hex, int pos) {
+    int value = 0;
+
+    for(int i = pos; i < pos + 8; i++) {
+      value = (value << 4) | Character.digit(hex.charAt(i), 16);
+    }
+
+    return value;
+  }
+
+  String formatIPv4(int address) {
+    chars.reset();
+    appendIPv4(address);
+    return StringPool.get(chars);
+  }
+
+  void appendIPv4(int address) {
+    chars.append((address >>> 24) & 0xff).append('.')
+      .append((address >>> 16) & 0xff).append('.')
+      .append((address >>> 8) & 0xff).append('.')
+      .append(address & 0xff);
+  }
+
+  String formatGroups() {
+    if(groups[0] == 0 && groups[1] == 0 && groups[2] == 0 && groups[3] == 0
+        && groups[4] == 0 && groups[5] == 0xffff) {
+      return formatIPv4(groups[6] << 16 | groups[7]);
+    }
+
+    // find the longest run of zero groups (at least two) to compress
+    int bestStart = -1, bestLength = 1;
+
+    for(int i = 0; i < 8; i++) {
+      if(groups[i] != 0) {
+        continue;
+      }
+
+      int end = i;
+      while(end < 8 && groups[end] == 0) {
+        end++;
+      }
+
+      if(end - i > bestLength) {
+        bestStart = i;
+        bestLength = end - i;
+      }
+
+      i = end;
+    }
+
+    chars.reset();
+
+    for(int i = 0; i < 8; i++) {
+      if(i == bestStart) {
+        chars.append(':');
+        if(i == 0) {
+          chars.append(':');
+        }
+        i += bestLength - 1;
+        continue;
+      }
+
+      appendHex(groups[i]);
+
+      if(i < 7) {
+        chars.append(':');
+      }
+    }
+
+    return StringPool.get(chars);
+  }
+
+  void appendHex(int value) {
+    boolean started = false;
+
+    for(int shift = 12; shift >= 0; shift -= 4) {
+      int digit = (value >> shift) & 0xf;
+
+      if(digit != 0 || started || shift == 0) {
+        chars.append(Character.forDigit(digit, 16));
+        started = true;
+      }
+    }
+  }
+}
@@ -115,15 +115,15 @@ public class AppFragment extends Fragment {
 
   public class ChildItem {
     protected String proto; // protocol (udp, tcp, igmp, icmp, etc)
-    protected int sentPackets;
-    protected int sentBytes;
+    protected long sentPackets;
+    protected long sentBytes;
     protected long sentTimestamp;
     protected int sentPort;
     protected String sentAddress;
     protected String out; // interface (rmnet, wifi, etc)
 
-    protected int receivedPackets;
-    protected int receivedBytes;
+    protected long receivedPackets;
+    protected long receivedBytes;
     protected long receivedTimestamp;
     protected int receivedPort;
     protected String receivedAddress;
@@ -980,6 +980,8 @@ public class AppFragment extends Fragment {
           entry.src = item.srcAddr;
           entry.dst = item.dstAddr;
           entry.len = item.len;
+          entry.packets = item.packets;
+          entry.weight = item.weight;
           entry.spt = item.srcPort;
           entry.dpt = item.dstPort;
           entry.timestamp = item.timestamp;
@@ -1059,8 +1061,8 @@ public class AppFragment extends Fragment {
 
         groupDataBufferIsDirty = true;
 
-        newLogItem.totalPackets++;
-        newLogItem.totalBytes += entry.len;
+        newLogItem.totalPackets += (long) entry.packets * entry.weight;
+        newLogItem.totalBytes += (long) entry.len * entry.weight;
         newLogItem.lastTimestamp = entry.timestamp;
 
         if(entry.in != null && entry.in.length() != 0) {
@@ -1075,8 +1077,8 @@ public class AppFragment extends Fragment {
             newLogChild.in = entry.in;
             newLogChild.out = null;
             newLogChild.proto = entry.proto;
-            newLogChild.receivedPackets++;
-            newLogChild.receivedBytes += entry.len;
+            newLogChild.receivedPackets += (long) entry.packets * entry.weight;
+            newLogChild.receivedBytes += (long) entry.len * entry.weight;
             newLogChild.receivedTimestamp = entry.timestamp;
 
             if(MyLog.enabled && MyLog.level >= 8) {
@@ -1104,8 +1106,8 @@ public class AppFragment extends Fragment {
             newLogChild.in = null;
             newLogChild.out = entry.out;
             newLogChild.proto = entry.proto;
-            newLogChild.sentPackets++;
-            newLogChild.sentBytes += entry.len;
+            newLogChild.sentPackets += (long) entry.packets * entry.weight;
+            newLogChild.sentBytes += (long) entry.len * entry.weight;
             newLogChild.sentTimestamp = entry.timestamp;
 
             if(MyLog.enabled && MyLog.level >= 8) {
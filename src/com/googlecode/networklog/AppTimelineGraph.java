@@ -119,7 +119,7 @@ public class AppTimelineGraph extends GraphActivity
               hostMap.put(hostKey, packetList);
             }
 
-            packetList.add(new PacketGraphItem(item.timestamp, item.len));
+            packetList.add(new PacketGraphItem(item.timestamp, (long) item.len * item.weight));
           }
         }
       }
@@ -0,0 +1,256 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import android.util.Log;
+
+import java.io.InputStream;
+import java.io.IOException;
+
+// Decodes the fixed-layout little-endian records written by the logger
+// helpers in binary output mode; see jni/nflog/nlrecord.h for the layout
+
+public class BinaryLogReader {
+  static final int RECORD_PACKET = 1;
+  static final int RECORD_IFNAME = 2;
+  static final int RECORD_FLOW = 3;
+  static final int RECORD_STATS = 4;
+  static final int RECORD_READY = 5;
+  // the uid resolver's; see SockDiagResolver
+  static final int RECORD_QUERY = 6;
+  static final int RECORD_OWNER = 7;
+
+  static final int DIRECTION_IN = 1;
+  static final int DIRECTION_OUT = 2;
+  // stands in for the interface on conntrack summaries, which have none
+  static final String CONNTRACK_IFNAME = "ct";
+
+  static final int HEADER_SIZE = 4;
+  static final int MAX_RECORD_SIZE = 1024;
+  // as in the helper; interface indexes keep climbing as interfaces come
+  // and go, so the name table grows as needed
+  static final int MAX_IFINDEX = 65536;
+
+  InputStream in;
+  LogEntry entry = new LogEntry();
+  byte[] buffer = new byte[1024 * 16];
+  int buffer_pos = 0;
+  int buffer_length = 0;
+  String[] ifnames = new String[32];
+  CharArray charBuffer = new CharArray(64);
+  AddressFormatter addressFormatter = new AddressFormatter();
+  CaptureStats.HelperReport stats = new CaptureStats.HelperReport();
+
+  public BinaryLogReader(InputStream in) {
+    this.in = in;
+  }
+
+  public void close() {
+    try {
+      in.close();
+    } catch(IOException e) {
+      Log.w("NetworkLog", "BinaryLogReader exception closing stream", e);
+    }
+  }
+
+  // make sure at least count bytes are buffered; returns false at end of stream
+  boolean fill(int count) throws IOException {
+    if(buffer_length - buffer_pos >= count) {
+      return true;
+    }
+
+    // move partial record to start of buffer
+    System.arraycopy(buffer, buffer_pos, buffer, 0, buffer_length - buffer_pos);
+    buffer_length -= buffer_pos;
+    buffer_pos = 0;
+
+    while(buffer_length < count) {
+      int read = in.read(buffer, buffer_length, buffer.length - buffer_length);
+
+      if(read == -1) {
+        return false;
+      }
+
+      buffer_length += read;
+    }
+
+    return true;
+  }
+
+  // whether readEntry() can go on without waiting for the helper
+  public boolean hasBuffered() throws IOException {
+    return buffer_length > buffer_pos || in.available() > 0;
+  }
+
+  // reads the ready record the helper writes before anything else once it
+  // is logging; false if the stream ended or started with something else
+  public boolean waitForReady() throws IOException {
+    if(!fill(HEADER_SIZE) || (buffer[buffer_pos] & 0xff) != RECORD_READY) {
+      return false;
+    }
+
+    int size = getShort(buffer_pos + 2);
+
+    if(size < HEADER_SIZE || size > MAX_RECORD_SIZE || !fill(size)) {
+      return false;
+    }
+
+    buffer_pos += size;
+    return true;
+  }
+
+  // returns the next packet entry, or null at end of stream; the returned
+  // LogEntry is reused by the next call
+  public LogEntry readEntry() throws IOException {
+    while(true) {
+      if(!fill(HEADER_SIZE)) {
+        return null;
+      }
+
+      int type = buffer[buffer_pos] & 0xff;
+      int size = getShort(buffer_pos + 2);
+
+      if(size < HEADER_SIZE || size > MAX_RECORD_SIZE) {
+        throw new IOException("Bad record size " + size + " for type " + type);
+      }
+
+      if(!fill(size)) {
+        return null;
+      }
+
+      int pos = buffer_pos;
+      buffer_pos += size;
+
+      switch(type) {
+        case RECORD_PACKET:
+          decodePacket(pos);
+          return entry;
+
+        case RECORD_FLOW:
+          decodeFlow(pos);
+          return entry;
+
+        case RECORD_IFNAME:
+          decodeIfname(pos);
+          break;
+
+        case RECORD_STATS:
+          stats.update(getLong(pos + 8), getLong(pos + 16), getLong(pos + 24),
+              getLong(pos + 32), getLong(pos + 40));
+          break;
+
+        case RECORD_READY:
+          break;
+
+        default:
+          if(MyLog.enabled) {
+            MyLog.d("BinaryLogReader skipping unknown record type " + type);
+          }
+      }
+    }
+  }
+
+  void decodePacket(int pos) {
+    int family = buffer[pos + 1] & 0xff;
+
+    entry.proto = getProtocol(buffer[pos + 4] & 0xff);
+    entry.spt = getShort(pos + 6);
+    entry.dpt = getShort(pos + 8);
+    entry.uid = getInt(pos + 12);
+    entry.uidString = StringPool.get(entry.uid);
+    entry.timestamp = getLong(pos + 16);
+    entry.in = getIfname(getInt(pos + 24));
+    entry.out = getIfname(getInt(pos + 28));
+    entry.len = getInt(pos + 32);
+    entry.packets = 1;
+    entry.src = addressFormatter.format(buffer, pos + 40, family);
+    entry.dst = addressFormatter.format(buffer, pos + 56, family);
+    entry.validated = false;
+  }
+
+  // flow summaries share the packet layout, with the packet count in place
+  // of the length and the byte count appended
+  void decodeFlow(int pos) {
+    decodePacket(pos);
+
+    long bytes = getLong(pos + 72);
+    entry.packets = getInt(pos + 32);
+    entry.len = bytes > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) bytes;
+
+    switch(buffer[pos + 5] & 0xff) {
+      case DIRECTION_IN:
+        entry.in = CONNTRACK_IFNAME;
+        break;
+      case DIRECTION_OUT:
+        entry.out = CONNTRACK_IFNAME;
+        break;
+    }
+  }
+
+  void decodeIfname(int pos) {
+    int ifindex = getInt(pos + 4);
+
+    if(ifindex <= 0 || ifindex >= MAX_IFINDEX) {
+      return;
+    }
+
+    if(ifindex >= ifnames.length) {
+      String[] grown = new String[Math.min(Integer.highestOneBit(ifindex) * 2, MAX_IFINDEX)];
+      System.arraycopy(ifnames, 0, grown, 0, ifnames.length);
+      ifnames = grown;
+    }
+
+    int end = pos + 8;
+    while(end < pos + 24 && buffer[end] != 0) {
+      end++;
+    }
+
+    charBuffer.reset();
+    for(int i = pos + 8; i < end; i++) {
+      charBuffer.append((char) buffer[i]);
+    }
+
+    ifnames[ifindex] = StringPool.get(charBuffer);
+  }
+
+  String getIfname(int ifindex) {
+    if(ifindex <= 0 || ifindex >= ifnames.length || ifnames[ifindex] == null) {
+      return "";
+    }
+    return ifnames[ifindex];
+  }
+
+  String getProtocol(int protocol) {
+    switch(protocol) {
+      case 1:
+        return "ICMP";
+      case 6:
+        return "TCP";
+      case 17:
+        return "UDP";
+      case 58:
+        return "ICMPv6";
+      default:
+        return StringPool.get(protocol);
+    }
+  }
+
+  int getShort(int pos) {
+    return (buffer[pos] & 0xff) | ((buffer[pos + 1] & 0xff) << 8);
+  }
+
+  int getInt(int pos) {
+    return (buffer[pos] & 0xff)
+      | ((buffer[pos + 1] & 0xff) << 8)
+      | ((buffer[pos + 2] & 0xff) << 16)
+      | ((buffer[pos + 3] & 0xff) << 24);
+  }
+
+  long getLong(int pos) {
+    return (getInt(pos) & 0xffffffffL) | ((long) getInt(pos + 4) << 32);
+  }
+}
@@ -0,0 +1,194 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+// What the last start found out about the device (root access, verified
+// binaries, iptables targets), so the next start can skip those checks and
+// begin logging as soon as the root shell is up.  Results taken from here
+// are checked again by revalidate() once logging is running.  Everything
+// is dropped when the app, Android or the kernel changes.
+
+package com.googlecode.networklog;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+
+public class CapabilityCache {
+  static final String FILE_NAME = "capabilities.cache";
+  static final String KEY_VERSION = "version";
+  static final String KEY_ROOT = "root";
+  static final String KEY_TARGETS = "targets";
+  static final String KEY_TARGETS6 = "targets6";
+  static final String KEY_BINARY = "binary:";
+
+  static HashMap<String, String> cache;
+  static boolean isDirty = false;
+  // whether any result came from the cache since the last revalidate()
+  static boolean used = false;
+
+  @SuppressWarnings("unchecked")
+  static void load(Context context) {
+    if(cache != null) {
+      return;
+    }
+
+    String version = getVersion(context);
+    File file = getFile(context);
+
+    if(file.exists()) {
+      try {
+        ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(file));
+        cache = (HashMap<String, String>) inputStream.readObject();
+        inputStream.close();
+      } catch(Exception e) {
+        Log.w("NetworkLog", "Exception loading capability cache", e);
+        cache = null;
+      }
+    }
+
+    if(cache == null || !version.equals(cache.get(KEY_VERSION))) {
+      MyLog.d("Capability cache is empty or stale; checking everything");
+      cache = new HashMap<String, String>();
+      cache.put(KEY_VERSION, version);
+      isDirty = true;
+    }
+  }
+
+  public static synchronized void save(Context context) {
+    if(cache == null || isDirty == false) {
+      return;
+    }
+
+    try {
+      ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(getFile(context)));
+      outputStream.writeObject(cache);
+      outputStream.flush();
+      outputStream.close();
+      isDirty = false;
+    } catch(Exception e) {
+      Log.w("NetworkLog", "Exception saving capability cache", e);
+    }
+  }
+
+  static File getFile(Context context) {
+    return new File(context.getDir("data", Context.MODE_PRIVATE), FILE_NAME);
+  }
+
+  // app version, Android version and kernel release; an update to any of
+  // them can change the binaries or what the device supports
+  static String getVersion(Context context) {
+    int versionCode = 0;
+
+    try {
+      versionCode = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionCode;
+    } catch(PackageManager.NameNotFoundException e) {
+      Log.w("NetworkLog", "Unable to get app version for capability cache", e);
+    }
+
+    return versionCode + " " + Build.VERSION.SDK_INT + " " + System.getProperty("os.version");
+  }
+
+  static String get(Context context, String key) {
+    load(context);
+    String value = cache.get(key);
+
+    if(value != null) {
+      used = true;
+    }
+
+    return value;
+  }
+
+  static void put(Context context, String key, String value) {
+    load(context);
+
+    if(value == null) {
+      isDirty |= cache.remove(key) != null;
+    } else if(!value.equals(cache.get(key))) {
+      cache.put(key, value);
+      isDirty = true;
+    }
+  }
+
+  public static synchronized boolean hasRoot(Context context) {
+    return get(context, KEY_ROOT) != null;
+  }
+
+  public static synchronized void setRoot(Context context, boolean hasRoot) {
+    put(context, KEY_ROOT, hasRoot ? "true" : null);
+  }
+
+  // space separated iptables targets, or null if not known
+  public static synchronized String getTargets(Context context, boolean ipv6) {
+    return get(context, ipv6 ? KEY_TARGETS6 : KEY_TARGETS);
+  }
+
+  public static synchronized void setTargets(Context context, boolean ipv6, String targets) {
+    put(context, ipv6 ? KEY_TARGETS6 : KEY_TARGETS, targets);
+  }
+
+  // true if the file at path is the one last verified to have md5sum; a
+  // rewritten file has a new modification time
+  public static synchronized boolean isBinaryVerified(Context context, String path, String md5sum) {
+    File file = new File(path);
+    return getBinaryEntry(file, md5sum).equals(get(context, KEY_BINARY + path));
+  }
+
+  public static synchronized void setBinaryVerified(Context context, String path, String md5sum) {
+    put(context, KEY_BINARY + path, getBinaryEntry(new File(path), md5sum));
+  }
+
+  static String getBinaryEntry(File file, String md5sum) {
+    return md5sum + " " + file.length() + " " + file.lastModified();
+  }
+
+  // checks again whatever was taken from the cache; runs on the thread that
+  // started logging, after it has, since it uses the same root shell
+  public static void revalidate(Context context) {
+    synchronized(CapabilityCache.class) {
+      if(!used) {
+        save(context);
+        return;
+      }
+
+      used = false;
+    }
+
+    MyLog.d("Revalidating cached capabilities");
+
+    if(!SysUtils.checkRoot(context)) {
+      Log.w("NetworkLog", "Root access is no longer available");
+    }
+
+    SysUtils.installBinaries(context, false);
+
+    if(Iptables.targets != null) {
+      // the running logger was chosen by the targets in use, so they stay
+      // in use; a fresh check only updates the cache for the next start
+      HashMap<String, String> targets = Iptables.targets;
+      HashMap<String, String> targets6 = Iptables.targets6;
+
+      Iptables.targets = null;
+
+      if(Iptables.getTargets(context, false) && !Iptables.targets.keySet().equals(targets.keySet())) {
+        Log.w("NetworkLog", "iptables targets changed since they were cached");
+      }
+
+      Iptables.targets = targets;
+      Iptables.targets6 = targets6;
+    }
+
+    save(context);
+  }
+}
@@ -0,0 +1,163 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+// Capture-loss accounting: counters reported by the nflog helper plus the
+// ones kept by NetworkLogService, so entries lost anywhere between the
+// kernel and the log are visible instead of silently missing.
+// Written by the NetworkLogger thread only; read by the UI.
+
+package com.googlecode.networklog;
+
+public class CaptureStats {
+  // totals reported by the helpers; several helpers may report at once
+  static long helperMessages;
+  static long helperPackets;
+  static long helperBytes;
+  static long helperOverruns;
+  static long helperTruncated;
+  static volatile long helperReportTime;
+
+  // counted by NetworkLogService
+  static volatile long entriesSeen;
+  static volatile long entriesParsed;
+  static volatile long blockedDropped;
+  static volatile long kernelSuppressed;
+  static volatile long startTime = System.currentTimeMillis();
+
+  // socket table reads for uid attribution, counted by NetworkLogService
+  static volatile long netstatRefreshes;
+  static volatile long netstatSockets;
+  static volatile long netstatNanos;
+  // refreshes skipped by the rate limit, and for flows that had no owner
+  // at a recent refresh
+  static volatile long netstatThrottled;
+  static volatile long netstatNoOwner;
+
+  // sock_diag lookups for uid attribution, counted by NetworkLogService
+  static volatile long sockDiagBatches;
+  static volatile long sockDiagQueries;
+  static volatile long sockDiagNanos;
+  static volatile long sockDiagNoOwner;
+
+  // last report from one helper process; each helper reports its own
+  // totals since it started, so only the change is added
+  public static class HelperReport {
+    long messages, packets, bytes, overruns, truncated;
+
+    public void update(long messages, long packets, long bytes, long overruns, long truncated) {
+      addHelper(messages - this.messages, packets - this.packets, bytes - this.bytes,
+          overruns - this.overruns, truncated - this.truncated);
+      this.messages = messages;
+      this.packets = packets;
+      this.bytes = bytes;
+      this.overruns = overruns;
+      this.truncated = truncated;
+    }
+  }
+
+  public static synchronized void reset() {
+    helperMessages = helperPackets = helperBytes = helperOverruns = helperTruncated = 0;
+    entriesSeen = entriesParsed = blockedDropped = kernelSuppressed = 0;
+    netstatRefreshes = netstatSockets = netstatNanos = netstatThrottled = netstatNoOwner = 0;
+    sockDiagBatches = sockDiagQueries = sockDiagNanos = sockDiagNoOwner = 0;
+    NetworkLogService.flowUids.resetCounters();
+    startTime = System.currentTimeMillis();
+  }
+
+  static synchronized void addHelper(long messages, long packets, long bytes, long overruns, long truncated) {
+    helperMessages += messages;
+    helperPackets += packets;
+    helperBytes += bytes;
+    helperOverruns += overruns;
+    helperTruncated += truncated;
+    helperReportTime = System.currentTimeMillis();
+  }
+
+  // parses the helper's text mode report:
+  // {NLSTATS} MESSAGES=n PACKETS=n BYTES=n OVERRUNS=n TRUNCATED=n
+  public static boolean parseHelperLine(String line, HelperReport report) {
+    if(!line.startsWith("{NLSTATS}")) {
+      return false;
+    }
+
+    report.update(getValue(line, "MESSAGES="), getValue(line, "PACKETS="), getValue(line, "BYTES="),
+        getValue(line, "OVERRUNS="), getValue(line, "TRUNCATED="));
+    return true;
+  }
+
+  // kernel printk rate limiting drops LOG target lines and reports it as
+  // e.g. "net_ratelimit: 12 callbacks suppressed" or
+  // "printk: 34 messages suppressed."; returns the count, or 0 if none
+  public static int parseSuppressedLine(String line) {
+    int end = line.indexOf(" suppressed");
+
+    if(end == -1) {
+      return 0;
+    }
+
+    // number precedes the "callbacks"/"messages" word
+    int space = line.lastIndexOf(' ', end - 1);
+
+    if(space <= 0) {
+      return 0;
+    }
+
+    int start = line.lastIndexOf(' ', space - 1) + 1;
+
+    try {
+      return Integer.parseInt(line.substring(start, space));
+    } catch(NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  static long getValue(String line, String key) {
+    int start = line.indexOf(key);
+
+    if(start == -1) {
+      return 0;
+    }
+
+    start += key.length();
+    int end = start;
+
+    while(end < line.length() && Character.isDigit(line.charAt(end))) {
+      end++;
+    }
+
+    try {
+      return Long.parseLong(line.substring(start, end));
+    } catch(NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  public static synchronized long getHelperMessages() {
+    return helperMessages;
+  }
+
+  public static synchronized long getHelperPackets() {
+    return helperPackets;
+  }
+
+  public static synchronized long getHelperBytes() {
+    return helperBytes;
+  }
+
+  public static synchronized long getHelperOverruns() {
+    return helperOverruns;
+  }
+
+  public static synchronized long getHelperTruncated() {
+    return helperTruncated;
+  }
+
+  // entries the service saw but could not parse
+  public static long getMalformed() {
+    long malformed = entriesSeen - entriesParsed;
+    return malformed > 0 ? malformed : 0;
+  }
+}
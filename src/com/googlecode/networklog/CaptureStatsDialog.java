@@ -0,0 +1,140 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import android.app.AlertDialog;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.res.Resources;
+import android.view.View;
+
+// Capture health panel; shows CaptureStats, refreshed while showing
+
+public class CaptureStatsDialog
+{
+  public AlertDialog dialog;
+  private Context context;
+  private Runnable updater;
+
+  public CaptureStatsDialog(final Context context)
+  {
+    this.context = context;
+    Resources res = context.getResources();
+
+    AlertDialog.Builder builder = new AlertDialog.Builder(context);
+    builder.setTitle(res.getString(R.string.capture_stats_title))
+      .setMessage(getText())
+      .setCancelable(true)
+      .setNeutralButton(res.getString(R.string.capture_stats_reset), new DialogInterface.OnClickListener() {
+        public void onClick(DialogInterface d, int id) {
+          // see show() method for implementation -- keeps dialog open
+        }
+      })
+    .setPositiveButton(res.getString(R.string.capture_stats_close), new DialogInterface.OnClickListener() {
+      public void onClick(DialogInterface d, int id) {
+        dismiss();
+      }
+    });
+    dialog = builder.create();
+
+    dialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
+      public void onDismiss(DialogInterface d) {
+        stopUpdater();
+      }
+    });
+
+    updater = new Runnable() {
+      public void run() {
+        if(dialog != null && dialog.isShowing()) {
+          dialog.setMessage(getText());
+          NetworkLog.handler.postDelayed(this, 1000);
+        }
+      }
+    };
+  }
+
+  public String getText() {
+    Resources res = context.getResources();
+    StringBuilder text = new StringBuilder();
+
+    if(CaptureStats.helperReportTime == 0) {
+      text.append(res.getString(R.string.capture_stats_helper_unavailable));
+    } else {
+      text.append(res.getString(R.string.capture_stats_helper,
+            CaptureStats.getHelperMessages(),
+            CaptureStats.getHelperPackets(),
+            StringUtils.formatToBytes(CaptureStats.getHelperBytes()),
+            CaptureStats.getHelperOverruns(),
+            CaptureStats.getHelperTruncated(),
+            (System.currentTimeMillis() - CaptureStats.helperReportTime) / 1000));
+    }
+
+    text.append("\n\n").append(res.getString(R.string.capture_stats_service,
+          CaptureStats.entriesSeen,
+          CaptureStats.entriesParsed,
+          CaptureStats.getMalformed(),
+          CaptureStats.blockedDropped,
+          CaptureStats.kernelSuppressed,
+          (System.currentTimeMillis() - CaptureStats.startTime) / 1000));
+
+    text.append("\n\n").append(res.getString(R.string.capture_stats_flows,
+          NetworkLogService.flowUids.getSize(),
+          NetworkLogService.flowUids.getCapacity(),
+          NetworkLogService.flowUids.hits,
+          NetworkLogService.flowUids.misses,
+          NetworkLogService.flowUids.evictions));
+
+    long refreshes = CaptureStats.netstatRefreshes;
+    text.append("\n\n").append(res.getString(R.string.capture_stats_netstat,
+          refreshes,
+          refreshes == 0 ? 0 : CaptureStats.netstatNanos / refreshes / 1000,
+          refreshes == 0 ? 0 : CaptureStats.netstatSockets / refreshes,
+          CaptureStats.netstatThrottled,
+          CaptureStats.netstatNoOwner));
+
+    long batches = CaptureStats.sockDiagBatches;
+    if(batches > 0) {
+      text.append("\n\n").append(res.getString(R.string.capture_stats_sock_diag,
+            batches,
+            CaptureStats.sockDiagQueries,
+            CaptureStats.sockDiagNanos / batches / 1000,
+            CaptureStats.sockDiagNoOwner));
+    }
+
+    if(CaptureStats.getHelperOverruns() > 0 || CaptureStats.getHelperTruncated() > 0
+        || CaptureStats.kernelSuppressed > 0) {
+      text.append("\n\n").append(res.getString(R.string.capture_stats_loss_warning));
+    }
+
+    return text.toString();
+  }
+
+  public void show() {
+    if(dialog != null) {
+      dialog.show();
+      dialog.getButton(DialogInterface.BUTTON_NEUTRAL).setOnClickListener(new View.OnClickListener() {
+        public void onClick(View v) {
+          CaptureStats.reset();
+          dialog.setMessage(getText());
+        }
+      });
+      NetworkLog.handler.postDelayed(updater, 1000);
+    }
+  }
+
+  public void stopUpdater() {
+    NetworkLog.handler.removeCallbacks(updater);
+  }
+
+  public void dismiss() {
+    if(dialog != null) {
+      stopUpdater();
+      dialog.dismiss();
+      dialog = null;
+    }
+  }
+}
@@ -0,0 +1,343 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+// Maps flows (source address and port to destination address and port)
+// to the uid that owns them, for entries logged without a uid.  Keys are
+// packed into primitives, each address as two longs (IPv4 in its v4-mapped
+// form, so only the low long differs) and both ports as one int, and kept
+// in parallel arrays with open addressing, so neither lookups nor stores
+// allocate.  The arrays are sized once from a memory budget; when they
+// fill up, expired flows and then the least recently used ones are
+// dropped.  Not thread-safe.
+
+package com.googlecode.networklog;
+
+import java.util.Arrays;
+
+public class FlowUidTable {
+  static final int MEMORY_BUDGET = 256 * 1024;
+  // bytes per slot: four address longs, ports, uid, last use and scratch
+  static final int SLOT_SIZE = 4 * 8 + 4 + 4 + 8 + 8;
+  static final long EXPIRE_TIME = 10 * 60 * 1000;
+  static final int NOT_FOUND = Integer.MIN_VALUE;
+
+  final long expireTime;
+  final int capacity;
+  final int mask;
+  // slots in use at most; the free ones keep probe sequences short
+  final int maxSize;
+  int size;
+
+  long[] srcHi;
+  long[] srcLo;
+  long[] dstHi;
+  long[] dstLo;
+  int[] ports;
+  int[] uids;
+  // time of the last lookup or store; 0 for a free slot
+  long[] lastUsed;
+  long[] scratch;
+
+  // lookups and evictions; written by the owning thread only
+  volatile long hits;
+  volatile long misses;
+  volatile long evictions;
+
+  // the flow set by setFlow()
+  boolean flowValid;
+  long flowSrcHi, flowSrcLo, flowDstHi, flowDstLo;
+  int flowPorts, flowPortsReverse;
+  long now;
+
+  // result of parseAddress()
+  long addressHi, addressLo;
+  char[] buffer = new char[64];
+  AddressFormatter addressFormatter = new AddressFormatter();
+
+  public FlowUidTable() {
+    this(MEMORY_BUDGET, EXPIRE_TIME);
+  }
+
+  // flows unused for expireTime ms are not found anymore
+  public FlowUidTable(int memoryBudget, long expireTime) {
+    this.expireTime = expireTime;
+    capacity = Integer.highestOneBit(Math.max(memoryBudget / SLOT_SIZE, 16));
+    mask = capacity - 1;
+    maxSize = capacity / 4 * 3;
+
+    srcHi = new long[capacity];
+    srcLo = new long[capacity];
+    dstHi = new long[capacity];
+    dstLo = new long[capacity];
+    ports = new int[capacity];
+    uids = new int[capacity];
+    lastUsed = new long[capacity];
+    scratch = new long[maxSize];
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public int getCapacity() {
+    return maxSize;
+  }
+
+  public void clear() {
+    Arrays.fill(lastUsed, 0);
+    size = 0;
+  }
+
+  public void resetCounters() {
+    hits = misses = evictions = 0;
+  }
+
+  // sets the flow for the following get() and put() calls; false if an
+  // address cannot be parsed, in which case nothing is found or stored
+  public boolean setFlow(String src, int spt, String dst, int dpt) {
+    flowValid = false;
+
+    if(!parseAddress(src)) {
+      return false;
+    }
+
+    long sHi = addressHi;
+    long sLo = addressLo;
+
+    if(!parseAddress(dst)) {
+      return false;
+    }
+
+    setFlow(sHi, sLo, spt, addressHi, addressLo, dpt);
+    return true;
+  }
+
+  // the same for addresses packed as described above
+  public void setFlow(long sHi, long sLo, int spt, long dHi, long dLo, int dpt) {
+    now = System.currentTimeMillis();
+    flowSrcHi = sHi;
+    flowSrcLo = sLo;
+    flowDstHi = dHi;
+    flowDstLo = dLo;
+    flowPorts = (spt & 0xffff) << 16 | (dpt & 0xffff);
+    flowPortsReverse = (dpt & 0xffff) << 16 | (spt & 0xffff);
+    flowValid = true;
+  }
+
+  boolean parseAddress(String address) {
+    int length = address.length();
+
+    if(length > buffer.length) {
+      return false;
+    }
+
+    address.getChars(0, length, buffer, 0);
+
+    if(!addressFormatter.parse(buffer, 0, length)) {
+      return false;
+    }
+
+    int[] groups = addressFormatter.groups;
+    addressHi = (long) groups[0] << 48 | (long) groups[1] << 32 | (long) groups[2] << 16 | groups[3];
+    addressLo = (long) groups[4] << 48 | (long) groups[5] << 32 | (long) groups[6] << 16 | groups[7];
+    return true;
+  }
+
+  // uid of the flow, or of its reply direction if reverse; NOT_FOUND if
+  // not known
+  public int get(boolean reverse) {
+    int slot = -1;
+
+    if(flowValid) {
+      slot = reverse ? find(flowDstHi, flowDstLo, flowSrcHi, flowSrcLo, flowPortsReverse)
+        : find(flowSrcHi, flowSrcLo, flowDstHi, flowDstLo, flowPorts);
+    }
+
+    if(slot != -1 && now - lastUsed[slot] > expireTime) {
+      // the port may have been reused by another app since
+      remove(slot);
+      evictions++;
+      slot = -1;
+    }
+
+    if(slot == -1) {
+      misses++;
+      return NOT_FOUND;
+    }
+
+    hits++;
+    lastUsed[slot] = now;
+    return uids[slot];
+  }
+
+  // whether get(reverse) would find the flow, without counting a lookup
+  public boolean contains(boolean reverse) {
+    int slot = -1;
+
+    if(flowValid) {
+      slot = reverse ? find(flowDstHi, flowDstLo, flowSrcHi, flowSrcLo, flowPortsReverse)
+        : find(flowSrcHi, flowSrcLo, flowDstHi, flowDstLo, flowPorts);
+    }
+
+    return slot != -1 && now - lastUsed[slot] <= expireTime;
+  }
+
+  public void put(boolean reverse, int uid) {
+    if(!flowValid) {
+      return;
+    }
+
+    if(reverse) {
+      put(flowDstHi, flowDstLo, flowSrcHi, flowSrcLo, flowPortsReverse, uid);
+    } else {
+      put(flowSrcHi, flowSrcLo, flowDstHi, flowDstLo, flowPorts, uid);
+    }
+  }
+
+  void put(long sHi, long sLo, long dHi, long dLo, int p, int uid) {
+    int slot = find(sHi, sLo, dHi, dLo, p);
+
+    if(slot == -1) {
+      if(size >= maxSize) {
+        evict();
+      }
+
+      slot = hash(sHi, sLo, dHi, dLo, p) & mask;
+
+      while(lastUsed[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+
+      srcHi[slot] = sHi;
+      srcLo[slot] = sLo;
+      dstHi[slot] = dHi;
+      dstLo[slot] = dLo;
+      ports[slot] = p;
+      size++;
+    }
+
+    uids[slot] = uid;
+    lastUsed[slot] = now;
+  }
+
+  int find(long sHi, long sLo, long dHi, long dLo, int p) {
+    int slot = hash(sHi, sLo, dHi, dLo, p) & mask;
+
+    // ends at a free slot; there is always one
+    while(lastUsed[slot] != 0) {
+      if(ports[slot] == p && srcLo[slot] == sLo && dstLo[slot] == dLo
+          && srcHi[slot] == sHi && dstHi[slot] == dHi) {
+        return slot;
+      }
+
+      slot = (slot + 1) & mask;
+    }
+
+    return -1;
+  }
+
+  static int hash(long sHi, long sLo, long dHi, long dLo, int p) {
+    long h = sLo * 0x9e3779b97f4a7c15L;
+    h = (h ^ dLo) * 0x9e3779b97f4a7c15L;
+    h = (h ^ sHi ^ (dHi << 1)) * 0x9e3779b97f4a7c15L;
+    h = (h ^ p) * 0x9e3779b97f4a7c15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  int homeSlot(int slot) {
+    return hash(srcHi[slot], srcLo[slot], dstHi[slot], dstLo[slot], ports[slot]) & mask;
+  }
+
+  // drops the expired flows, and the least recently used ones if that does
+  // not bring the table down to three quarters full
+  void evict() {
+    int count = 0;
+
+    for(int slot = 0; slot < capacity; slot++) {
+      if(lastUsed[slot] != 0) {
+        scratch[count++] = lastUsed[slot];
+      }
+    }
+
+    // flows last used before cutoff go, and of those used at cutoff itself
+    // only as many as needed, since many flows can share a millisecond
+    long cutoff = now - expireTime;
+    int ties = 0;
+    int keep = maxSize / 4 * 3;
+
+    if(count > keep) {
+      Arrays.sort(scratch, 0, count);
+      long newest = scratch[count - keep - 1];
+
+      if(newest >= cutoff) {
+        cutoff = newest;
+
+        for(int i = count - keep - 1; i >= 0 && scratch[i] == newest; i--) {
+          ties++;
+        }
+      }
+    }
+
+    // start after a free slot, so that no cluster wraps around the start
+    int start = 0;
+
+    while(lastUsed[start] != 0) {
+      start++;
+    }
+
+    int evicted = size;
+
+    for(int i = 1; i <= capacity; i++) {
+      int slot = (start + i) & mask;
+
+      // remove() may move a later flow into this slot
+      while(lastUsed[slot] != 0 && (lastUsed[slot] < cutoff || (lastUsed[slot] == cutoff && ties > 0))) {
+        if(lastUsed[slot] == cutoff) {
+          ties--;
+        }
+
+        remove(slot);
+      }
+    }
+
+    evicted -= size;
+    evictions += evicted;
+
+    if(MyLog.enabled) {
+      MyLog.d("[FlowUidTable] Evicted " + evicted + " flows, " + size + " left");
+    }
+  }
+
+  // frees slot and moves later flows of its cluster back, so that every
+  // flow stays reachable from its home slot without tombstones
+  void remove(int slot) {
+    int free = slot;
+    int next = slot;
+
+    while(true) {
+      next = (next + 1) & mask;
+
+      if(lastUsed[next] == 0) {
+        break;
+      }
+
+      // the flow can move if the free slot is between its home and it
+      if(((next - homeSlot(next)) & mask) >= ((next - free) & mask)) {
+        srcHi[free] = srcHi[next];
+        srcLo[free] = srcLo[next];
+        dstHi[free] = dstHi[next];
+        dstLo[free] = dstLo[next];
+        ports[free] = ports[next];
+        uids[free] = uids[next];
+        lastUsed[free] = lastUsed[next];
+        free = next;
+      }
+    }
+
+    lastUsed[free] = 0;
+    size--;
+  }
+}
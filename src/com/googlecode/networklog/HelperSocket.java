@@ -0,0 +1,116 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+// Abstract-namespace unix socket a root logger helper connects to (nflog -u)
+// so its records bypass the su shell's stdout pipe; closing it tells the
+// helper to exit, and the helper exiting ends the stream right away.
+
+package com.googlecode.networklog;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.util.Log;
+
+import java.io.InputStream;
+import java.io.IOException;
+
+public class HelperSocket {
+  String name;
+  LocalServerSocket server;
+  LocalSocket socket;
+  volatile boolean timedOut;
+
+  public HelperSocket(String name) throws IOException {
+    this.name = name;
+    server = new LocalServerSocket(name);
+  }
+
+  // waits up to timeout ms for the helper to connect; returns false if it
+  // did not.  Only root may connect, so other apps cannot inject entries.
+  public boolean accept(final int timeout) {
+    timedOut = false;
+
+    // LocalServerSocket.accept() has no timeout; wake it with our own
+    // connection, which the uid check then rejects
+    Thread watchdog = new Thread(new Runnable() {
+      public void run() {
+        try {
+          Thread.sleep(timeout);
+        } catch(InterruptedException e) {
+          return;
+        }
+
+        timedOut = true;
+
+        try {
+          LocalSocket wake = new LocalSocket();
+          wake.connect(new LocalSocketAddress(name));
+          wake.close();
+        } catch(IOException e) {
+          Log.w("NetworkLog", "HelperSocket exception waking " + name, e);
+        }
+      }
+    }, "HelperSocketWatchdog");
+    watchdog.start();
+
+    try {
+      while(true) {
+        LocalSocket client = server.accept();
+        int uid = client.getPeerCredentials().getUid();
+
+        if(uid == 0) {
+          watchdog.interrupt();
+          socket = client;
+          closeServer();
+          return true;
+        }
+
+        client.close();
+
+        if(timedOut) {
+          Log.w("NetworkLog", "Logger helper did not connect to " + name);
+          return false;
+        }
+
+        Log.w("NetworkLog", "Rejected connection to " + name + " from uid " + uid);
+      }
+    } catch(IOException e) {
+      Log.e("NetworkLog", "HelperSocket exception accepting on " + name, e);
+      watchdog.interrupt();
+      return false;
+    }
+  }
+
+  public InputStream getInputStream() throws IOException {
+    return socket.getInputStream();
+  }
+
+  void closeServer() {
+    if(server != null) {
+      try {
+        server.close();
+      } catch(IOException e) {
+        Log.w("NetworkLog", "HelperSocket exception closing " + name, e);
+      }
+      server = null;
+    }
+  }
+
+  public void close() {
+    closeServer();
+
+    if(socket != null) {
+      try {
+        socket.shutdownInput();
+        socket.close();
+      } catch(IOException e) {
+        Log.w("NetworkLog", "HelperSocket exception closing " + name, e);
+      }
+      socket = null;
+    }
+  }
+}
@@ -161,8 +161,18 @@ public class InteractiveShell {
     return command.stdout.lineAvailable();
   }
 
+  // blocks until a line arrives; null at the end of a command's output or
+  // once the shell has exited
   public String readLine() {
-    String line = command.stdout.readLine();
+    return checkCommandExit(command.stdout.readLine());
+  }
+
+  // the same, but also null if no line arrives within timeout ms
+  public String readLine(long timeout) {
+    return checkCommandExit(command.stdout.readLine(timeout));
+  }
+
+  String checkCommandExit(String line) {
     if(line == null) {
       return null;
     } else if(line.startsWith("..EOF..")) {
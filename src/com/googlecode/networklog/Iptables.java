@@ -12,16 +12,51 @@ import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class Iptables {
   public static HashMap<String, String> targets = null;
+  public static HashMap<String, String> targets6 = null;
+  // NFLOG groups used by the installed rules, so they can be removed after
+  // the setting changes; 0 until rules are added
+  static int ruleGroups = 0;
+  static String ruleIp6tablesBinary = null;
+  // 1 in ruleSampleRate packets pass the installed rules; logged entries
+  // are weighted by it
+  static int ruleSampleRate = 1;
+  // uids the installed rules exclude from logging
+  static HashSet<Integer> excludedUids = new HashSet<Integer>();
+  // logging rules installed per binary, and whether the jumps to our
+  // chains were inserted first
+  static int ruleLogCount = 0;
+  static boolean ruleJumpsFirst = false;
+
+  static final String CHAIN_OUT = "networklog_out";
+  static final String CHAIN_IN = "networklog_in";
+  // set once iptables-restore turns out to be missing
+  static boolean restoreUnavailable = false;
+  static final String RESTORE_EOF = "NETWORKLOG_RULES";
 
   public static boolean getTargets(Context context) {
+    return getTargets(context, true);
+  }
+
+  // useCache takes the targets found at the last start, if the device has
+  // not changed since
+  public static boolean getTargets(Context context, boolean useCache) {
     if(targets != null) {
       return true;
     }
 
+    if(useCache && getCachedTargets(context)) {
+      return true;
+    }
+
     targets = new HashMap<String, String>();
 
     if(!NetworkLog.shell.sendCommand("cat /proc/net/ip_tables_targets")) {
@@ -48,51 +83,404 @@ public class Iptables {
     }
 
     MyLog.d("getTargets result: [" + result + "]");
+    CapabilityCache.setTargets(context, false, result.toString().trim());
+
+    getTargets6(context);
     return true;
   }
 
-  public static boolean addRules(Context context) {
-    String iptablesBinary = SysUtils.getIptablesBinary(context);
-    if(iptablesBinary == null) {
+  static boolean getCachedTargets(Context context) {
+    String cached = CapabilityCache.getTargets(context, false);
+    String cached6 = CapabilityCache.getTargets(context, true);
+
+    if(cached == null || cached6 == null) {
       return false;
     }
 
-    if(targets == null && getTargets(context) == false) {
-      return false;
+    targets = getTargetMap(cached);
+    targets6 = getTargetMap(cached6);
+    MyLog.d("getTargets cached result: [" + cached + "] [" + cached6 + "]");
+    return true;
+  }
+
+  static HashMap<String, String> getTargetMap(String list) {
+    HashMap<String, String> map = new HashMap<String, String>();
+
+    for(String target : list.split(" ")) {
+      if(target.length() > 0) {
+        map.put(target, target);
+      }
     }
 
-    if(!removeRules(context)) {
-      return false;
+    return map;
+  }
+
+  // IPv6 logging is optional, so a kernel without ip6_tables is not an error
+  public static void getTargets6(Context context) {
+    targets6 = new HashMap<String, String>();
+
+    if(!NetworkLog.shell.sendCommand("cat /proc/net/ip6_tables_targets")) {
+      Log.w("NetworkLog", "Unable to check ip6tables targets: " + NetworkLog.shell.getError(true));
+      return;
     }
 
-    ArrayList<String> commands = new ArrayList<String>();
+    List<String> output = new ArrayList<String>();
+    if(NetworkLog.shell.waitForCommandExit(output) != 0) {
+      MyLog.d("No ip6tables support (exit " + NetworkLog.shell.exitval + ")");
+      CapabilityCache.setTargets(context, true, "");
+      return;
+    }
 
+    StringBuilder result = new StringBuilder();
+    for(String line : output) {
+      line = line.trim();
+      targets6.put(line, line);
+      result.append(line).append(" ");
+    }
+
+    MyLog.d("getTargets6 result: [" + result + "]");
+    CapabilityCache.setTargets(context, true, result.toString().trim());
+  }
+
+  public static String getLogTarget() {
     if(targets.get("LOG") != null) {
-      if(NetworkLogService.behindFirewall) {
-        commands.add(iptablesBinary + " -A OUTPUT ! -o lo -j LOG --log-prefix \"{NL}\" --log-uid");
-        commands.add(iptablesBinary + " -A INPUT ! -i lo -j LOG --log-prefix \"{NL}\" --log-uid");
-      } else {
-        commands.add(iptablesBinary + " -I OUTPUT 1 ! -o lo -j LOG --log-prefix \"{NL}\" --log-uid");
-        commands.add(iptablesBinary + " -I INPUT 1 ! -i lo -j LOG --log-prefix \"{NL}\" --log-uid");
-      }
+      return "LOG";
     } else if(targets.get("NFLOG") != null) {
-      if(NetworkLogService.behindFirewall) {
-        commands.add(iptablesBinary + " -A OUTPUT ! -o lo -j NFLOG --nflog-prefix \"{NL}\"");
-        commands.add(iptablesBinary + " -A INPUT ! -i lo -j NFLOG --nflog-prefix \"{NL}\"");
+      return "NFLOG";
+    } else {
+      return null;
+    }
+  }
+
+  // returns the ip6tables command, or null if IPv6 packets cannot be logged
+  // with the same target as IPv4 (the logger reads only one kind)
+  public static String getIp6tablesBinary(Context context, String target) {
+    if(targets6 == null || targets6.get(target) == null) {
+      return null;
+    }
+
+    return SysUtils.getIp6tablesBinary(context);
+  }
+
+  // only helpers that take options can read more than one group
+  static int getNflogGroups(Context context, String target) {
+    if(!target.equals("NFLOG") || !SysUtils.nflogHasOptions(context)) {
+      return 1;
+    }
+
+    return ruleGroups > 0 ? ruleGroups : NetworkLog.settings.getNflogGroups();
+  }
+
+  // builds the logging chains, with the exclusions ahead of the logging
+  // rules, and jumps to them from OUTPUT and INPUT; command is -A (append)
+  // or -I (insert at top)
+  static void addRuleCommands(ArrayList<String> commands, String binary, String target, String command,
+      int groups, Set<Integer> uids, String[] exclusions, boolean ipv6, int sampleRate) {
+    String position = command.equals("-I") ? " 1" : "";
+
+    commands.add(binary + " -N " + CHAIN_OUT);
+    commands.add(binary + " -N " + CHAIN_IN);
+
+    for(Integer uid : uids) {
+      commands.add(getUidExclusionCommand(binary, "-A", uid));
+    }
+
+    for(String exclusion : exclusions) {
+      addExclusionCommands(commands, binary, exclusion, ipv6);
+    }
+
+    if(sampleRate > 1) {
+      addSamplingCommands(commands, binary, sampleRate);
+    }
+
+    addLogCommands(commands, binary + " -A " + CHAIN_OUT, binary + " -A " + CHAIN_IN, target, groups);
+
+    commands.add(binary + " " + command + " OUTPUT" + position + " ! -o lo -j " + CHAIN_OUT);
+    commands.add(binary + " " + command + " INPUT" + position + " ! -i lo -j " + CHAIN_IN);
+  }
+
+  // deletes the installed rules found in rules (iptables -S output): the
+  // jumps to our chains, rules from versions that logged straight from
+  // OUTPUT and INPUT, and with dropChains the chains themselves
+  static void removeRuleCommands(ArrayList<String> commands, String binary, List<String> rules, boolean dropChains) {
+    ArrayList<String> chains = new ArrayList<String>();
+
+    for(String rule : rules) {
+      if(rule.equals("-N " + CHAIN_OUT) || rule.equals("-N " + CHAIN_IN)) {
+        chains.add(rule.substring(3));
+      } else if((rule.startsWith("-A OUTPUT ") || rule.startsWith("-A INPUT "))
+          && (rule.endsWith(" -j " + CHAIN_OUT) || rule.endsWith(" -j " + CHAIN_IN) || rule.indexOf("{NL}") != -1)) {
+        commands.add(binary + " -D" + rule.substring(2));
+      }
+    }
+
+    if(dropChains) {
+      for(String chain : chains) {
+        commands.add(binary + " -F " + chain);
+        commands.add(binary + " -X " + chain);
+      }
+    }
+  }
+
+  // the filter table as rule specs, or null if it cannot be read
+  static List<String> getRuleSpecs(String binary) {
+    if(!NetworkLog.shell.sendCommand(binary + " -S")) {
+      Log.e("NetworkLog", "Unable to list rules for " + binary + ": " + NetworkLog.shell.getError(true));
+      return null;
+    }
+
+    List<String> output = new ArrayList<String>();
+    if(NetworkLog.shell.waitForCommandExit(output) != 0) {
+      MyLog.d("Unable to list rules for " + binary + " (exit " + NetworkLog.shell.exitval + ")");
+      return null;
+    }
+
+    List<String> rules = new ArrayList<String>();
+    for(String line : output) {
+      line = line.trim();
+      if(line.length() > 0) {
+        rules.add(line);
+      }
+    }
+
+    return rules;
+  }
+
+  // iptables-restore input for the commands of one binary; -N becomes a
+  // chain declaration, which with --noflush also empties an existing chain
+  static String getRestorePayload(List<String> commands, String binary) {
+    StringBuilder payload = new StringBuilder("*filter\n");
+    String prefix = binary + " ";
+
+    for(String command : commands) {
+      if(!command.startsWith(prefix)) {
+        continue;
+      }
+
+      String rule = command.substring(prefix.length());
+
+      if(rule.startsWith("-N ")) {
+        payload.append(':').append(rule.substring(3)).append(" - [0:0]\n");
       } else {
-        commands.add(iptablesBinary + " -I OUTPUT 1 ! -o lo -j NFLOG --nflog-prefix \"{NL}\"");
-        commands.add(iptablesBinary + " -I INPUT 1 ! -i lo -j NFLOG --nflog-prefix \"{NL}\"");
+        payload.append(rule).append('\n');
       }
-    } else {
-      SysUtils.showError(context,
-          context.getResources().getString(R.string.iptables_error_unsupported_title),
-          context.getResources().getString(R.string.iptables_error_missingfeatures_text));
+    }
+
+    return payload.append("COMMIT\n").toString();
+  }
+
+  // applies the commands of one binary as a single iptables-restore
+  // transaction; false, with the rules unchanged, if iptables-restore is
+  // missing or rejected them
+  static boolean runRestore(Context context, String binary, List<String> commands, String tag) {
+    String restoreBinary = SysUtils.getRestoreBinary(context, binary);
+
+    if(restoreBinary == null || restoreUnavailable) {
       return false;
     }
 
-    for(String command : commands) {
-      if(!NetworkLog.shell.sendCommand(command)) {
-        SysUtils.showError(context, context.getResources().getString(R.string.iptables_error_add_rules), NetworkLog.shell.getError(true));
+    String command = restoreBinary + " --noflush <<'" + RESTORE_EOF + "'\n"
+      + getRestorePayload(commands, binary) + RESTORE_EOF;
+
+    if(!NetworkLog.shell.sendCommand(command)) {
+      Log.w("NetworkLog", "Unable to run " + restoreBinary + ": " + NetworkLog.shell.getError(true));
+      return false;
+    }
+
+    List<String> output = new ArrayList<String>();
+    NetworkLog.shell.waitForCommandExit(output);
+
+    StringBuilder result = new StringBuilder();
+    for(String line : output) {
+      result.append(line);
+    }
+
+    if(MyLog.enabled) {
+      MyLog.d(tag + " restore result: [" + result + "]");
+    }
+
+    if(NetworkLog.shell.exitval == 127) {
+      Log.w("NetworkLog", restoreBinary + " not found; rules will be changed one command at a time");
+      restoreUnavailable = true;
+      return false;
+    }
+
+    if(NetworkLog.shell.exitval != 0) {
+      Log.w("NetworkLog", "Bad exit for " + tag + " with " + restoreBinary + " (exit " + NetworkLog.shell.exitval + "): " + result);
+      return false;
+    }
+
+    return true;
+  }
+
+  // replaces the installed rules with commands in one transaction per
+  // binary, so logging never runs with half of them; false if that was not
+  // possible for any binary
+  static boolean restoreRules(Context context, List<String> commands) {
+    String[] binaries = { SysUtils.getIptablesBinary(context), SysUtils.getIp6tablesBinary(context) };
+
+    for(String binary : binaries) {
+      if(binary == null) {
+        continue;
+      }
+
+      ArrayList<String> additions = new ArrayList<String>();
+
+      for(String command : commands) {
+        if(command.startsWith(binary + " ")) {
+          additions.add(command);
+        }
+      }
+
+      List<String> rules = getRuleSpecs(binary);
+
+      if(rules == null) {
+        if(additions.isEmpty()) {
+          // e.g. ip6tables on a kernel without IPv6 tables
+          continue;
+        }
+        return false;
+      }
+
+      ArrayList<String> batch = new ArrayList<String>();
+      removeRuleCommands(batch, binary, rules, false);
+      batch.addAll(additions);
+
+      if(!batch.isEmpty() && !runRestore(context, binary, batch, "addRules")) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  static void addLogCommands(ArrayList<String> commands, String output, String input, String target, int groups) {
+    if(target.equals("LOG")) {
+      String jump = " -j LOG --log-prefix \"{NL}\" --log-uid";
+      commands.add(output + jump);
+      commands.add(input + jump);
+    } else if(groups <= 1) {
+      String jump = " -j NFLOG --nflog-prefix \"{NL}\"";
+      commands.add(output + jump);
+      commands.add(input + jump);
+    } else {
+      // output uses the first half of the groups, input the second
+      addNflogGroupCommands(commands, output, 0, groups / 2);
+      addNflogGroupCommands(commands, input, groups / 2, groups / 2);
+    }
+  }
+
+  // spreads packets round-robin over count groups starting at first; NFLOG
+  // does not terminate, so each rule sees every packet and its own nth
+  // counter picks every count'th one at a different offset
+  static void addNflogGroupCommands(ArrayList<String> commands, String rule, int first, int count) {
+    for(int i = 0; i < count; i++) {
+      String match = count > 1 ? " -m statistic --mode nth --every " + count + " --packet " + i : "";
+      commands.add(rule + match + " -j NFLOG --nflog-prefix \"{NL}\" --nflog-group " + (first + i));
+    }
+  }
+
+  // lets a random 1 in rate packets through to the logging rules; random
+  // rather than nth so periodic traffic is not over- or under-counted
+  static void addSamplingCommands(ArrayList<String> commands, String binary, int rate) {
+    String match = " -m statistic --mode random --probability "
+      + String.format(Locale.US, "%.6f", (rate - 1) / (double) rate) + " -j RETURN";
+    commands.add(binary + " -A " + CHAIN_OUT + match);
+    commands.add(binary + " -A " + CHAIN_IN + match);
+  }
+
+  static final Pattern IPV4_NETWORK = Pattern.compile("[0-9]{1,3}(\\.[0-9]{1,3}){3}(/[0-9]{1,2})?");
+  static final Pattern IPV6_NETWORK = Pattern.compile("[0-9a-fA-F:.]*:[0-9a-fA-F:.]*(/[0-9]{1,3})?");
+  static final Pattern PORT_RANGE = Pattern.compile("((tcp|udp)/)?([0-9]{1,5})(-([0-9]{1,5}))?");
+  static final Pattern INTERFACE = Pattern.compile("[a-zA-Z][a-zA-Z0-9_.-]*\\+?");
+
+  // the never-log list from settings, one entry per element
+  static String[] getExclusions() {
+    String exclusions = NetworkLog.settings.getLogExclusions().trim();
+
+    if(exclusions.length() == 0) {
+      return new String[0];
+    }
+
+    return exclusions.split("[,\\s]+");
+  }
+
+  // RETURN rules for one never-log entry in both chains: an address or
+  // network (either direction), an interface, or a [tcp|udp/]port[-port]
+  static void addExclusionCommands(ArrayList<String> commands, String binary, String exclusion, boolean ipv6) {
+    String out = binary + " -A " + CHAIN_OUT;
+    String in = binary + " -A " + CHAIN_IN;
+    Matcher port;
+
+    if(IPV4_NETWORK.matcher(exclusion).matches() || IPV6_NETWORK.matcher(exclusion).matches()) {
+      if(ipv6 != (exclusion.indexOf(':') != -1)) {
+        // the other family's rules
+        return;
+      }
+
+      commands.add(out + " -d " + exclusion + " -j RETURN");
+      commands.add(out + " -s " + exclusion + " -j RETURN");
+      commands.add(in + " -s " + exclusion + " -j RETURN");
+      commands.add(in + " -d " + exclusion + " -j RETURN");
+    } else if((port = PORT_RANGE.matcher(exclusion)).matches()) {
+      String ports = port.group(3) + (port.group(5) != null ? ":" + port.group(5) : "");
+      String[] protocols = port.group(2) != null ? new String[] { port.group(2) } : new String[] { "tcp", "udp" };
+
+      for(String protocol : protocols) {
+        String match = " -p " + protocol;
+        commands.add(out + match + " --dport " + ports + " -j RETURN");
+        commands.add(out + match + " --sport " + ports + " -j RETURN");
+        commands.add(in + match + " --sport " + ports + " -j RETURN");
+        commands.add(in + match + " --dport " + ports + " -j RETURN");
+      }
+    } else if(INTERFACE.matcher(exclusion).matches()) {
+      commands.add(out + " -o " + exclusion + " -j RETURN");
+      commands.add(in + " -i " + exclusion + " -j RETURN");
+    } else {
+      Log.w("NetworkLog", "Ignoring invalid never-log entry [" + exclusion + "]");
+    }
+  }
+
+  // the owner match only sees locally generated packets, so excluded apps'
+  // incoming packets are still logged and dropped by the service
+  static String getUidExclusionCommand(String binary, String command, int uid) {
+    String position = command.equals("-I") ? " 1" : "";
+    return binary + " " + command + " " + CHAIN_OUT + position + " -m owner --uid-owner " + uid + " -j RETURN";
+  }
+
+  // uids of the apps blocked from logging, as NetworkLogService.notifyNewEntry
+  // resolves them: a shared uid is excluded only if the app it maps to is
+  static HashSet<Integer> getExcludedUids() {
+    HashSet<Integer> uids = new HashSet<Integer>();
+    HashMap<String, String> blockedApps = NetworkLogService.blockedApps;
+
+    if(blockedApps == null || ApplicationsTracker.packageMap == null) {
+      return uids;
+    }
+
+    synchronized(ApplicationsTracker.installedAppsLock) {
+      for(String packageName : blockedApps.keySet()) {
+        ApplicationsTracker.AppEntry app = ApplicationsTracker.packageMap.get(packageName);
+
+        if(app == null || app.uid < 0) {
+          continue;
+        }
+
+        ApplicationsTracker.AppEntry owner = ApplicationsTracker.uidMap.get(app.uidString);
+
+        if(owner != null && blockedApps.get(owner.packageName) != null) {
+          uids.add(app.uid);
+        }
+      }
+    }
+
+    return uids;
+  }
+
+  static boolean runCommands(Context context, List<String> commands, String tag, int errorTitle) {
+    for(String rule : commands) {
+      if(!NetworkLog.shell.sendCommand(rule)) {
+        SysUtils.showError(context, context.getResources().getString(errorTitle), NetworkLog.shell.getError(true));
         return false;
       }
 
@@ -105,12 +493,12 @@ public class Iptables {
       }
 
       if(MyLog.enabled) {
-        MyLog.d("addRules result: [" + result + "]");
+        MyLog.d(tag + " result: [" + result + "]");
       }
 
       if(NetworkLog.shell.exitval != 0) {
-        Log.e("NetworkLog", "Bad exit for addRules (exit " + NetworkLog.shell.exitval + ")");
-        SysUtils.showError(context, context.getResources().getString(R.string.iptables_error_add_rules), result.toString());
+        Log.e("NetworkLog", "Bad exit for " + tag + " (exit " + NetworkLog.shell.exitval + ")");
+        SysUtils.showError(context, context.getResources().getString(errorTitle), result.toString());
         return false;
       }
 
@@ -126,7 +514,12 @@ public class Iptables {
     return true;
   }
 
-  public static boolean removeRules(Context context) {
+  public static boolean addRules(Context context) {
+    if(!NetworkLogService.logsPackets()) {
+      // connection events and uid counters need no per-packet rules
+      return true;
+    }
+
     String iptablesBinary = SysUtils.getIptablesBinary(context);
     if(iptablesBinary == null) {
       return false;
@@ -136,56 +529,204 @@ public class Iptables {
       return false;
     }
 
-    int tries = 0;
+    String target = getLogTarget();
 
-    while(checkRules(context) == true) {
-      ArrayList<String> commands = new ArrayList<String>();
-      if(targets.get("LOG") != null) {
-        commands.add(iptablesBinary + " -D OUTPUT ! -o lo -j LOG --log-prefix \"{NL}\" --log-uid");
-        commands.add(iptablesBinary + " -D INPUT ! -i lo -j LOG --log-prefix \"{NL}\" --log-uid");
-      } else if(targets.get("NFLOG") != null) {
-        commands.add(iptablesBinary + " -D OUTPUT ! -o lo -j NFLOG --nflog-prefix \"{NL}\"");
-        commands.add(iptablesBinary + " -D INPUT ! -i lo -j NFLOG --nflog-prefix \"{NL}\"");
-      } else {
-        SysUtils.showError(context,
-            context.getResources().getString(R.string.iptables_error_unsupported_title),
-            context.getResources().getString(R.string.iptables_error_missingfeatures_text));
+    if(target == null) {
+      SysUtils.showError(context,
+          context.getResources().getString(R.string.iptables_error_unsupported_title),
+          context.getResources().getString(R.string.iptables_error_missingfeatures_text));
+      return false;
+    }
+
+    String command = NetworkLogService.behindFirewall ? "-A" : "-I";
+    int groups = getNflogGroups(context, target);
+    HashSet<Integer> uids = getExcludedUids();
+    String[] exclusions = getExclusions();
+    int sampleRate = NetworkLog.settings.getSampleRate();
+    ArrayList<String> commands = new ArrayList<String>();
+    addRuleCommands(commands, iptablesBinary, target, command, groups, uids, exclusions, false, sampleRate);
+
+    String ip6tablesBinary = getIp6tablesBinary(context, target);
+    if(ip6tablesBinary != null) {
+      addRuleCommands(commands, ip6tablesBinary, target, command, groups, uids, exclusions, true, sampleRate);
+    } else {
+      Log.w("NetworkLog", "No ip6tables " + target + " support; IPv6 packets will not be logged");
+    }
+
+    if(!restoreRules(context, commands)) {
+      // one command at a time, after taking out whatever is installed
+      if(!removeRules(context) || !runCommands(context, commands, "addRules", R.string.iptables_error_add_rules)) {
         return false;
       }
+    }
 
-      for(String command : commands) {
-        if(!NetworkLog.shell.sendCommand(command)) {
-          SysUtils.showError(context, context.getResources().getString(R.string.iptables_error_remove_rules), NetworkLog.shell.getError(true));
-          return false;
+    ruleGroups = groups;
+    ruleIp6tablesBinary = ip6tablesBinary;
+    ruleSampleRate = sampleRate;
+    excludedUids = uids;
+    ruleLogCount = countLogRules(commands, iptablesBinary);
+    ruleJumpsFirst = command.equals("-I");
+    return true;
+  }
+
+  static int countLogRules(List<String> commands, String binary) {
+    String out = binary + " -A " + CHAIN_OUT + " ";
+    String in = binary + " -A " + CHAIN_IN + " ";
+    int count = 0;
+
+    for(String command : commands) {
+      if((command.startsWith(out) || command.startsWith(in)) && command.indexOf("{NL}") != -1) {
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+  // whether the rules addRules installed are still in place: both jumps
+  // (still ahead of other rules if they were inserted first) and all the
+  // logging rules.  Counters and other apps' rules are not looked at, so
+  // traffic and unrelated changes do not cause the rules to be reinstalled
+  public static boolean checkInstalledRules(Context context) {
+    if(ruleGroups == 0) {
+      // nothing installed to check
+      return true;
+    }
+
+    String[] binaries = { SysUtils.getIptablesBinary(context), ruleIp6tablesBinary };
+
+    for(String binary : binaries) {
+      if(binary == null) {
+        continue;
+      }
+
+      List<String> rules = getRuleSpecs(binary);
+
+      if(rules == null) {
+        // cannot tell; check again next time
+        continue;
+      }
+
+      if(!checkInstalledRules(rules)) {
+        MyLog.d("checkInstalledRules: rules missing for " + binary);
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  static boolean checkInstalledRules(List<String> rules) {
+    boolean jumpOut = false, jumpIn = false;
+    int outputRules = 0, inputRules = 0, logRules = 0;
+
+    for(String rule : rules) {
+      if(rule.startsWith("-A OUTPUT ")) {
+        if(rule.endsWith(" -j " + CHAIN_OUT) && (!ruleJumpsFirst || outputRules == 0)) {
+          jumpOut = true;
         }
+        outputRules++;
+      } else if(rule.startsWith("-A INPUT ")) {
+        if(rule.endsWith(" -j " + CHAIN_IN) && (!ruleJumpsFirst || inputRules == 0)) {
+          jumpIn = true;
+        }
+        inputRules++;
+      } else if((rule.startsWith("-A " + CHAIN_OUT + " ") || rule.startsWith("-A " + CHAIN_IN + " "))
+          && rule.indexOf("{NL}") != -1) {
+        logRules++;
+      }
+    }
+
+    return jumpOut && jumpIn && logRules == ruleLogCount;
+  }
 
-        List<String> output = new ArrayList<String>();
-        NetworkLog.shell.waitForCommandExit(output);
+  // brings the uid exclusions in the installed rules up to date with the
+  // blocked apps, without rebuilding the rest of the rules
+  public static boolean updateExcludedApps(Context context) {
+    if(ruleGroups == 0) {
+      // no rules installed; addRules will pick up the current apps
+      return true;
+    }
+
+    String iptablesBinary = SysUtils.getIptablesBinary(context);
+    if(iptablesBinary == null) {
+      return false;
+    }
+
+    HashSet<Integer> uids = getExcludedUids();
+    ArrayList<String> commands = new ArrayList<String>();
 
-        StringBuilder result = new StringBuilder();
-        for(String line : output) {
-          result.append(line);
+    for(Integer uid : excludedUids) {
+      if(!uids.contains(uid)) {
+        commands.add(getUidExclusionCommand(iptablesBinary, "-D", uid));
+        if(ruleIp6tablesBinary != null) {
+          commands.add(getUidExclusionCommand(ruleIp6tablesBinary, "-D", uid));
         }
+      }
+    }
 
-        if(MyLog.enabled) {
-          MyLog.d("removeRules result: [" + result + "]");
+    for(Integer uid : uids) {
+      if(!excludedUids.contains(uid)) {
+        commands.add(getUidExclusionCommand(iptablesBinary, "-I", uid));
+        if(ruleIp6tablesBinary != null) {
+          commands.add(getUidExclusionCommand(ruleIp6tablesBinary, "-I", uid));
         }
+      }
+    }
+
+    MyLog.d("updateExcludedApps: " + commands.size() + " changes");
+
+    if(!runCommands(context, commands, "updateExcludedApps", R.string.iptables_error_add_rules)) {
+      return false;
+    }
+
+    excludedUids = uids;
+    return true;
+  }
+
+  public static boolean removeRules(Context context) {
+    String iptablesBinary = SysUtils.getIptablesBinary(context);
+    if(iptablesBinary == null) {
+      return false;
+    }
 
-        if(NetworkLog.shell.exitval != 0) {
-          Log.e("NetworkLog", "Bad exit for removeRules (exit " + NetworkLog.shell.exitval + ")");
-          SysUtils.showError(context, context.getResources().getString(R.string.iptables_error_remove_rules), result.toString());
+    String[] binaries = { iptablesBinary, SysUtils.getIp6tablesBinary(context) };
+
+    for(String binary : binaries) {
+      if(binary == null) {
+        continue;
+      }
+
+      List<String> rules = getRuleSpecs(binary);
+
+      if(rules == null) {
+        if(binary.equals(iptablesBinary)) {
+          SysUtils.showError(context, context.getResources().getString(R.string.iptables_error_remove_rules), "Unable to list rules with " + binary);
           return false;
         }
+
+        // no IPv6 tables, so no IPv6 rules
+        continue;
       }
 
-      tries++;
+      ArrayList<String> commands = new ArrayList<String>();
+      removeRuleCommands(commands, binary, rules, true);
+
+      if(commands.isEmpty() || runRestore(context, binary, commands, "removeRules")) {
+        continue;
+      }
 
-      if(tries > 3) {
-        Log.w("NetworkLog", "Too many attempts to remove rules, moving along...");
+      if(!runCommands(context, commands, "removeRules", R.string.iptables_error_remove_rules)) {
         return false;
       }
     }
 
+    ruleGroups = 0;
+    ruleIp6tablesBinary = null;
+    ruleSampleRate = 1;
+    excludedUids = new HashSet<Integer>();
+    ruleLogCount = 0;
+    ruleJumpsFirst = false;
     return true;
   }
 
@@ -199,6 +740,10 @@ public class Iptables {
       return null;
     }
 
+    return getRules(context, iptablesBinary, verbose);
+  }
+
+  public static String getRules(Context context, String iptablesBinary, boolean verbose) {
     String command;
 
     if(verbose) {
@@ -234,7 +779,16 @@ public class Iptables {
   }
 
   public static boolean checkRules(Context context) {
-    String rules = getRules(context, true);
+    String iptablesBinary = SysUtils.getIptablesBinary(context);
+    if(iptablesBinary == null) {
+      return false;
+    }
+
+    return checkRules(context, iptablesBinary);
+  }
+
+  public static boolean checkRules(Context context, String iptablesBinary) {
+    String rules = getRules(context, iptablesBinary, true);
 
     if(rules == null) {
       return false;
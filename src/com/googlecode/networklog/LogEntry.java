@@ -15,12 +15,37 @@ public class LogEntry {
   String src;
   String dst;
   int len;
+  int packets = 1; // more than one for flow summaries
+  int weight = 1; // packets each logged one stands for when sampling
   int spt;
   int dpt;
   long timestamp;
   boolean validated;
   boolean valid;
 
+  public LogEntry copy() {
+    return new LogEntry().set(this);
+  }
+
+  public LogEntry set(LogEntry other) {
+    uid = other.uid;
+    uidString = other.uidString;
+    in = other.in;
+    out = other.out;
+    proto = other.proto;
+    src = other.src;
+    dst = other.dst;
+    len = other.len;
+    packets = other.packets;
+    weight = other.weight;
+    spt = other.spt;
+    dpt = other.dpt;
+    timestamp = other.timestamp;
+    validated = other.validated;
+    valid = other.valid;
+    return this;
+  }
+
   public boolean isValid() {
     if(validated) {
       return valid;
@@ -42,12 +67,13 @@ public class LogEntry {
       return false;
     }
 
-    if(StringUtils.contains(src, "{}:=")) {
+    // IPv6 addresses contain ':'
+    if(StringUtils.contains(src, "{}=")) {
       valid = false;
       return false;
     }
 
-    if(StringUtils.contains(dst, "{}:=")) {
+    if(StringUtils.contains(dst, "{}=")) {
       valid = false;
       return false;
     }
@@ -75,6 +75,8 @@ public class LogFragment extends Fragment {
     protected String dstAddr;
     protected int dstPort;
     protected int len;
+    protected int packets;
+    protected int weight;
     protected long timestamp;
 
     ListItem(ApplicationsTracker.AppEntry app) {
@@ -424,6 +426,8 @@ public class LogFragment extends Fragment {
 
     item.proto = entry.proto;
     item.len = entry.len;
+    item.packets = entry.packets;
+    item.weight = entry.weight;
     item.timestamp = entry.timestamp;
 
     if(MyLog.enabled && MyLog.level >= 6) {
@@ -1045,7 +1049,13 @@ public class LogFragment extends Fragment {
         }
 
         len = holder.getLen();
-        len.setText("LEN: " + item.len);
+        if(item.weight > 1) {
+          len.setText("LEN: " + item.len + " (" + item.packets + " of ~" + ((long) item.packets * item.weight) + " packets, sampled)");
+        } else if(item.packets > 1) {
+          len.setText("LEN: " + item.len + " (" + item.packets + " packets)");
+        } else {
+          len.setText("LEN: " + item.len);
+        }
 
         timestamp = holder.getTimestamp();
 
@@ -0,0 +1,237 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+// Parses the text entries of the LOG target and the nflog helper, e.g.
+// "{NL}IN=wlan0 OUT= SRC=1.2.3.4 DST=5.6.7.8 LEN=60 PROTO=TCP SPT=80 DPT=4000 UID=10061",
+// in one pass over each entry's KEY=VALUE tokens.  The line is copied into
+// a reused buffer, numbers are parsed in place and strings come from
+// StringPool and AddressFormatter, so nothing is allocated per line once
+// their pools are warm.  Not thread-safe.
+
+package com.googlecode.networklog;
+
+public class LogLineParser {
+  static final char[] MARKER = { '{', 'N', 'L', '}' };
+
+  // fields an entry cannot do without
+  static final int FIELD_IN    = 1 << 0;
+  static final int FIELD_OUT   = 1 << 1;
+  static final int FIELD_SRC   = 1 << 2;
+  static final int FIELD_DST   = 1 << 3;
+  static final int FIELD_LEN   = 1 << 4;
+  static final int FIELD_PROTO = 1 << 5;
+  static final int FIELDS_REQUIRED = FIELD_IN | FIELD_OUT | FIELD_SRC | FIELD_DST | FIELD_LEN | FIELD_PROTO;
+  // fields kept from their first occurrence only; ICMP errors repeat the
+  // offending packet's fields later in the line
+  static final int FIELD_SPT   = 1 << 6;
+  static final int FIELD_DPT   = 1 << 7;
+  static final int FIELD_UID   = 1 << 8;
+  static final int FIELD_TS    = 1 << 9;
+
+  char[] line = new char[512];
+  int length;
+  int pos;
+  // bounds of the entry found by nextEntry()
+  int entryStart;
+  int entryEnd;
+  AddressFormatter addressFormatter = new AddressFormatter();
+
+  public void setLine(String text) {
+    length = text.length();
+
+    if(length > line.length) {
+      line = new char[Math.max(length, line.length * 2)];
+    }
+
+    text.getChars(0, length, line, 0);
+    pos = 0;
+  }
+
+  // finds the next "{NL}" entry in the line; false if there are no more
+  public boolean nextEntry() {
+    int start = find(MARKER, pos, length);
+
+    if(start == -1) {
+      pos = length;
+      return false;
+    }
+
+    entryStart = start + MARKER.length;
+    entryEnd = entryStart;
+
+    while(entryEnd < length && line[entryEnd] != '\n') {
+      entryEnd++;
+    }
+
+    pos = entryEnd;
+    return true;
+  }
+
+  // the entry found by nextEntry(), for error messages
+  public String getEntryText() {
+    return new String(line, entryStart, entryEnd - entryStart);
+  }
+
+  // fills in entry from the entry found by nextEntry(); false if the entry
+  // is corrupted or misses required fields.  A timestamp of 0 means the
+  // line had none
+  public boolean parseEntry(LogEntry entry) {
+    int end = entryEnd;
+    int found = 0;
+
+    if(find(MARKER, entryStart, end) != -1) {
+      // two entries ran together
+      return false;
+    }
+
+    entry.spt = 0;
+    entry.dpt = 0;
+    entry.uid = -1;
+    entry.uidString = "-1";
+    entry.timestamp = 0;
+
+    int p = entryStart;
+
+    while(p < end) {
+      while(p < end && line[p] == ' ') {
+        p++;
+      }
+
+      int keyStart = p;
+
+      while(p < end && line[p] != '=' && line[p] != ' ') {
+        p++;
+      }
+
+      if(p == end || line[p] != '=') {
+        // a flag such as DF or SYN
+        continue;
+      }
+
+      int keyEnd = p++;
+      int valueStart = p;
+
+      while(p < end && line[p] != ' ') {
+        p++;
+      }
+
+      int field = getField(keyStart, keyEnd - keyStart);
+
+      if(field == 0 || (found & field) != 0) {
+        continue;
+      }
+
+      found |= field;
+
+      if(field == FIELD_IN) {
+        entry.in = getString(valueStart, p);
+      } else if(field == FIELD_OUT) {
+        entry.out = getString(valueStart, p);
+      } else if(field == FIELD_SRC) {
+        entry.src = addressFormatter.canonicalize(line, valueStart, p);
+      } else if(field == FIELD_DST) {
+        entry.dst = addressFormatter.canonicalize(line, valueStart, p);
+      } else if(field == FIELD_PROTO) {
+        entry.proto = getString(valueStart, p);
+      } else {
+        long value = getNumber(valueStart, p);
+
+        if(value < 0) {
+          return false;
+        }
+
+        if(field == FIELD_LEN) {
+          entry.len = (int) value;
+        } else if(field == FIELD_SPT) {
+          entry.spt = (int) value;
+        } else if(field == FIELD_DPT) {
+          entry.dpt = (int) value;
+        } else if(field == FIELD_UID) {
+          entry.uid = (int) value;
+          entry.uidString = getString(valueStart, p);
+        } else {
+          entry.timestamp = value;
+        }
+      }
+    }
+
+    if((found & FIELDS_REQUIRED) != FIELDS_REQUIRED) {
+      return false;
+    }
+
+    entry.packets = 1;
+    entry.validated = false;
+    return true;
+  }
+
+  int getField(int start, int count) {
+    char c = line[start];
+
+    switch(count) {
+      case 2:
+        if(c == 'I' && line[start + 1] == 'N') return FIELD_IN;
+        if(c == 'T' && line[start + 1] == 'S') return FIELD_TS;
+        return 0;
+      case 3:
+        char c1 = line[start + 1], c2 = line[start + 2];
+        if(c == 'O' && c1 == 'U' && c2 == 'T') return FIELD_OUT;
+        if(c == 'S' && c1 == 'R' && c2 == 'C') return FIELD_SRC;
+        if(c == 'D' && c1 == 'S' && c2 == 'T') return FIELD_DST;
+        if(c == 'L' && c1 == 'E' && c2 == 'N') return FIELD_LEN;
+        if(c == 'S' && c1 == 'P' && c2 == 'T') return FIELD_SPT;
+        if(c == 'D' && c1 == 'P' && c2 == 'T') return FIELD_DPT;
+        if(c == 'U' && c1 == 'I' && c2 == 'D') return FIELD_UID;
+        return 0;
+      case 5:
+        if(c == 'P' && line[start + 1] == 'R' && line[start + 2] == 'O'
+            && line[start + 3] == 'T' && line[start + 4] == 'O') return FIELD_PROTO;
+        return 0;
+      default:
+        return 0;
+    }
+  }
+
+  String getString(int start, int end) {
+    return start == end ? "" : StringPool.get(line, start, end - start);
+  }
+
+  // unsigned decimal in line[start, end), or -1 if it is not one
+  long getNumber(int start, int end) {
+    long value = 0;
+
+    if(start == end) {
+      return -1;
+    }
+
+    for(int i = start; i < end; i++) {
+      char c = line[i];
+
+      if(c < '0' || c > '9') {
+        return -1;
+      }
+
+      value = value * 10 + (c - '0');
+    }
+
+    return value;
+  }
+
+  int find(char[] target, int from, int end) {
+    for(int i = from; i <= end - target.length; i++) {
+      int j = 0;
+
+      while(j < target.length && line[i + j] == target[j]) {
+        j++;
+      }
+
+      if(j == target.length) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+}
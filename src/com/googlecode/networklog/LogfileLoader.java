@@ -14,13 +14,16 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 
 public class LogfileLoader {
+  // long enough for two uncompressed IPv6 addresses
+  static final int MAX_LINE_LENGTH = 256;
+
   RandomAccessFile logfile = null;
   LogEntry entry = new LogEntry();
   FastParser parser = new FastParser(',');
   int buffer_size = 1024 * 16;
   byte[] buffer = new byte[buffer_size]; // read a nice sized chunk of data
-  byte[] partial_buffer = new byte[128]; // for holding partial lines from end of buffer
-  byte[] line = new byte[128]; // a single line in the log file
+  byte[] partial_buffer = new byte[MAX_LINE_LENGTH]; // for holding partial lines from end of buffer
+  byte[] line = new byte[MAX_LINE_LENGTH]; // a single line in the log file
   int buffer_length = 0;
   int buffer_pos = 0;
   short partial_buffer_length = 0;
@@ -28,8 +31,8 @@ public class LogfileLoader {
   short line_pos = 0;
   long read_so_far = 0;
   long processed_so_far = 0;
-  StringBuilder sb = new StringBuilder(128);
-  char[] chars = new char[128];
+  StringBuilder sb = new StringBuilder(MAX_LINE_LENGTH);
+  char[] chars = new char[MAX_LINE_LENGTH];
   long length = 0;  // file length
 
   public void reset() {
@@ -265,6 +268,20 @@ public class LogfileLoader {
             } else {
               entry.proto = "";
             }
+
+            // packet count is present only on flow summary entries
+            if(parser.hasMore()) {
+              entry.packets = parser.getInt();
+            } else {
+              entry.packets = 1;
+            }
+
+            // sampling weight is present only on entries logged while sampling
+            if(parser.hasMore()) {
+              entry.weight = parser.getInt();
+            } else {
+              entry.weight = 1;
+            }
           } catch (Exception e) {
             Log.w("NetworkLog", "Skipping malformed entry", e);
             line_length = 0;
@@ -45,6 +45,24 @@ public class MD5Sum {
     }
   }
 
+  public static String digestStream(InputStream stream) throws java.io.IOException {
+    try {
+      if(md == null) {
+        md = MessageDigest.getInstance("MD5");
+      } else {
+        md.reset();
+      }
+    } catch (java.security.NoSuchAlgorithmException nsa) {
+      Log.e("NetworkLog", "MD5 algorithm not supported", nsa);
+      return "";
+    }
+
+    InputStream is = new DigestInputStream(stream, md);
+    byte[] bytes = new byte[8192];
+    while(is.read(bytes) > 0) {}
+    return toHex(md.digest());
+  }
+
   public static String digestFile(File file) {
     InputStream is = null;
 
@@ -4,227 +4,245 @@
    file, You can obtain one at http://mozilla.org/MPL/2.0/
  */
 
+// Reads the kernel's socket tables, /proc/net/{tcp,udp,tcp6,udp6}, into a
+// FlowUidTable.  Each file is read whole into a reused buffer and parsed
+// byte by byte, so a refresh allocates nothing but the file streams.
+// Not thread-safe.
+
 package com.googlecode.networklog;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.PrintStream;
-import java.util.HashMap;
-import java.util.ArrayList;
+import java.io.FileInputStream;
+import java.io.IOException;
 
 import android.util.Log;
 
 public class NetStat {
-  final String states[] = { "ESTBLSH",   "SYNSENT",   "SYNRECV",   "FWAIT1",   "FWAIT2",   "TMEWAIT",
-    "CLOSED",    "CLSWAIT",   "LASTACK",   "LISTEN",   "CLOSING",  "UNKNOWN"
-  };
-
-  public class Connection {
-    String src;
-    String spt;
-    String dst;
-    String dpt;
-    String uid;
-  }
+  static final String[] TABLES = { "tcp", "udp", "tcp6", "udp6" };
 
-  ArrayList<Connection> connections;
+  String[] paths = new String[TABLES.length];
+  byte[] buffer = new byte[32 * 1024];
+  int length;
+  int pos;
 
   public NetStat() {
-    connections = new ArrayList<Connection>();
-  }
-
-  private final String getAddress(final String hexa) {
-    try {
-      final long v = Long.parseLong(hexa, 16);
-      final long adr = (v >>> 24) | (v << 24) |
-        ((v << 8) & 0x00FF0000) | ((v >> 8) & 0x0000FF00);
-      return ((adr >> 24) & 0xff) + "." + ((adr >> 16) & 0xff) + "." + ((adr >> 8) & 0xff) + "." + (adr & 0xff);
-    } catch(Exception e) {
-      Log.w("NetworkLog", e.toString(), e);
-      return "-1.-1.-1.-1";
+    for(int i = 0; i < TABLES.length; i++) {
+      paths[i] = "/proc/" + android.os.Process.myPid() + "/net/" + TABLES[i];
     }
   }
 
-  private final String getAddress6(final String hexa) {
-    try {
-      final String ip4[] = hexa.split("0000000000000000FFFF0000");
-
-      if(ip4.length == 2) {
-        final long v = Long.parseLong(ip4[1], 16);
-        final long adr = (v >>> 24) | (v << 24) |
-          ((v << 8) & 0x00FF0000) | ((v >> 8) & 0x0000FF00);
-        return ((adr >> 24) & 0xff) + "." + ((adr >> 16) & 0xff) + "." + ((adr >> 8) & 0xff) + "." + (adr & 0xff);
-      } else {
-        return "-2.-2.-2.-2";
+  // stores the uid of every socket in table, in both directions; returns
+  // the number of sockets read
+  public int refresh(FlowUidTable table) {
+    int sockets = 0;
+
+    for(String path : paths) {
+      if(!read(path)) {
+        continue;
       }
-    } catch(Exception e) {
-      Log.w("NetworkLog", e.toString(), e);
-      return "-1.-1.-1.-1";
-    }
-  }
 
-  private final int getInt16(final String hexa) {
-    try {
-      return Integer.parseInt(hexa, 16);
-    } catch(Exception e) {
-      Log.w("NetworkLog", e.toString(), e);
-      return -1;
-    }
-  }
+      // skip the header line
+      pos = 0;
+      skipLine();
 
-  public ArrayList<Connection> getConnections() {
-    connections.clear();
-    try {
-      BufferedReader in = new BufferedReader(new FileReader("/proc/" + android.os.Process.myPid() + "/net/tcp"));
-      String line;
+      while(pos < length) {
+        int lineStart = pos;
 
-      while((line = in.readLine()) != null) {
-        line = line.trim();
-        if(MyLog.enabled && MyLog.level >= 5) {
-          MyLog.d(5, "Netstat: " + line);
+        if(parseLine(table)) {
+          sockets++;
+        } else {
+          Log.w("NetworkLog", "Skipping malformed line in " + path);
         }
-        String[] fields = line.split("\\s+", 10);
-        int fieldn = 0;
 
-        if(MyLog.enabled && MyLog.level >= 9) {
-          for(String field : fields) {
-            MyLog.d(9, "Field " + (fieldn++) + ": [" + field + "]");
+        if(MyLog.enabled && MyLog.level >= 5) {
+          int lineEnd = pos;
+
+          while(lineEnd < length && buffer[lineEnd] != '\n') {
+            lineEnd++;
           }
-        }
 
-        if(fields[0].equals("sl")) {
-          continue;
+          MyLog.d(5, "Netstat: " + new String(buffer, lineStart, lineEnd - lineStart).trim());
         }
 
-        Connection connection = new Connection();
-
-        String src[] = fields[1].split(":", 2);
-        String dst[] = fields[2].split(":", 2);
+        skipLine();
+      }
+    }
 
-        connection.src = getAddress(src[0]);
-        connection.spt = String.valueOf(getInt16(src[1]));
-        connection.dst = getAddress(dst[0]);
-        connection.dpt = String.valueOf(getInt16(dst[1]));
-        connection.uid = fields[7];
+    return sockets;
+  }
 
-        connections.add(connection);
-      }
+  boolean read(String path) {
+    FileInputStream in = null;
+    length = 0;
 
-      in.close();
+    try {
+      in = new FileInputStream(path);
+      int count;
 
-      in = new BufferedReader(new FileReader("/proc/" + android.os.Process.myPid() + "/net/udp"));
+      while((count = in.read(buffer, length, buffer.length - length)) != -1) {
+        length += count;
 
-      while((line = in.readLine()) != null) {
-        line = line.trim();
-        if(MyLog.enabled && MyLog.level >= 5) {
-          MyLog.d(5, "Netstat: " + line);
+        if(length == buffer.length) {
+          byte[] bigger = new byte[buffer.length * 2];
+          System.arraycopy(buffer, 0, bigger, 0, length);
+          buffer = bigger;
         }
-        String[] fields = line.split("\\s+", 10);
-        int fieldn = 0;
+      }
 
-        if(MyLog.enabled && MyLog.level >= 9) {
-          for(String field : fields) {
-            MyLog.d(9, "Field " + (fieldn++) + ": [" + field + "]");
-          }
+      return true;
+    } catch(IOException e) {
+      Log.w("NetworkLog", "Unable to read " + path, e);
+      return false;
+    } finally {
+      if(in != null) {
+        try {
+          in.close();
+        } catch(IOException e) {
+          // ignored
         }
+      }
+    }
+  }
 
-        if(fields[0].equals("sl")) {
-          continue;
-        }
+  // sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid ...
+  //  0: 0100007F:13AD 00000000:0000 0A 00000000:00000000 00:00000000 00000000 10061 ...
+  // addresses are 8 or 32 hex digits, as 32-bit words in host order
+  boolean parseLine(FlowUidTable table) {
+    skipSpaces();
 
-        Connection connection = new Connection();
+    if(!skipField()) {
+      return false;
+    }
 
-        String src[] = fields[1].split(":", 2);
-        String dst[] = fields[2].split(":", 2);
+    skipSpaces();
+    long srcHi = 0, srcLo = 0;
+    int start = pos;
 
-        connection.src = getAddress(src[0]);
-        connection.spt = String.valueOf(getInt16(src[1]));
-        connection.dst = getAddress(dst[0]);
-        connection.dpt = String.valueOf(getInt16(dst[1]));
-        connection.uid = fields[7];
+    if(!skipHex()) {
+      return false;
+    }
 
-        connections.add(connection);
-      }
+    int digits = pos - start;
 
-      in.close();
+    if(digits == 8) {
+      srcLo = 0xffffL << 32 | (Integer.reverseBytes(parseHex(start, 8)) & 0xffffffffL);
+    } else if(digits == 32) {
+      srcHi = getIPv6Half(start);
+      srcLo = getIPv6Half(start + 16);
+    } else {
+      return false;
+    }
 
-      in = new BufferedReader(new FileReader("/proc/" + android.os.Process.myPid() + "/net/tcp6"));
+    if(buffer[pos++] != ':') {
+      return false;
+    }
 
-      while((line = in.readLine()) != null) {
-        line = line.trim();
-        if(MyLog.enabled && MyLog.level >= 5) {
-          MyLog.d(5, "Netstat: " + line);
-        }
-        String[] fields = line.split("\\s+", 10);
-        int fieldn = 0;
+    start = pos;
 
-        if(MyLog.enabled && MyLog.level >= 9) {
-          for(String field : fields) {
-            MyLog.d(9, "Field " + (fieldn++) + ": [" + field + "]");
-          }
-        }
+    if(!skipHex() || pos - start != 4) {
+      return false;
+    }
 
-        if(fields[0].equals("sl")) {
-          continue;
-        }
+    int spt = parseHex(start, 4);
+    skipSpaces();
+    long dstHi = 0, dstLo = 0;
+    start = pos;
+
+    if(!skipHex() || pos - start != digits) {
+      return false;
+    }
+
+    if(digits == 8) {
+      dstLo = 0xffffL << 32 | (Integer.reverseBytes(parseHex(start, 8)) & 0xffffffffL);
+    } else {
+      dstHi = getIPv6Half(start);
+      dstLo = getIPv6Half(start + 16);
+    }
+
+    if(buffer[pos++] != ':') {
+      return false;
+    }
+
+    start = pos;
 
-        Connection connection = new Connection();
+    if(!skipHex() || pos - start != 4) {
+      return false;
+    }
 
-        String src[] = fields[1].split(":", 2);
-        String dst[] = fields[2].split(":", 2);
+    int dpt = parseHex(start, 4);
 
-        connection.src = getAddress6(src[0]);
-        connection.spt = String.valueOf(getInt16(src[1]));
-        connection.dst = getAddress6(dst[0]);
-        connection.dpt = String.valueOf(getInt16(dst[1]));
-        connection.uid = fields[7];
+    // st, tx_queue:rx_queue, tr:tm->when, retrnsmt
+    for(int i = 0; i < 4; i++) {
+      skipSpaces();
 
-        connections.add(connection);
+      if(!skipField()) {
+        return false;
       }
+    }
 
-      in.close();
+    skipSpaces();
+    int uid = 0;
+    start = pos;
 
-      in = new BufferedReader(new FileReader("/proc/" + android.os.Process.myPid() + "/net/udp6"));
+    while(pos < length && buffer[pos] >= '0' && buffer[pos] <= '9') {
+      uid = uid * 10 + (buffer[pos++] - '0');
+    }
 
-      while((line = in.readLine()) != null) {
-        line = line.trim();
-        if(MyLog.enabled && MyLog.level >= 5) {
-          MyLog.d(5, "Netstat: " + line);
-        }
-        String[] fields = line.split("\\s+", 10);
-        int fieldn = 0;
+    if(pos == start) {
+      return false;
+    }
 
-        if(MyLog.enabled && MyLog.level >= 9) {
-          for(String field : fields) {
-            MyLog.d(9, "Field " + (fieldn++) + ": [" + field + "]");
-          }
-        }
+    table.setFlow(srcHi, srcLo, spt, dstHi, dstLo, dpt);
+    table.put(false, uid);
+    table.put(true, uid);
+    return true;
+  }
 
-        if(fields[0].equals("sl")) {
-          continue;
-        }
+  // two of the four words of an IPv6 address, as FlowUidTable packs them
+  long getIPv6Half(int start) {
+    return (long) Integer.reverseBytes(parseHex(start, 8)) << 32
+      | (Integer.reverseBytes(parseHex(start + 8, 8)) & 0xffffffffL);
+  }
 
-        Connection connection = new Connection();
+  int parseHex(int start, int count) {
+    int value = 0;
 
-        String src[] = fields[1].split(":", 2);
-        String dst[] = fields[2].split(":", 2);
+    for(int i = start; i < start + count; i++) {
+      value = value << 4 | Character.digit(buffer[i], 16);
+    }
 
-        connection.src = getAddress6(src[0]);
-        connection.spt = String.valueOf(getInt16(src[1]));
-        connection.dst = getAddress6(dst[0]);
-        connection.dpt = String.valueOf(getInt16(dst[1]));
-        connection.uid = fields[7];
+    return value;
+  }
 
-        connections.add(connection);
-      }
+  // false if the line ends first
+  boolean skipHex() {
+    while(pos < length && Character.digit(buffer[pos], 16) != -1) {
+      pos++;
+    }
+
+    return pos < length && buffer[pos] != '\n';
+  }
+
+  boolean skipField() {
+    int start = pos;
 
-      in.close();
-    } catch(Exception e) {
-      Log.w("NetworkLog", e.toString(), e);
+    while(pos < length && buffer[pos] != ' ' && buffer[pos] != '\n') {
+      pos++;
     }
 
-    return connections;
+    return pos > start && pos < length && buffer[pos] != '\n';
   }
-}
 
+  void skipSpaces() {
+    while(pos < length && buffer[pos] == ' ') {
+      pos++;
+    }
+  }
 
+  void skipLine() {
+    while(pos < length && buffer[pos] != '\n') {
+      pos++;
+    }
+
+    pos++;
+  }
+}
@@ -96,6 +96,7 @@ public class NetworkLog extends SherlockFragmentActivity {
   public static HistoryLoader history;
   public static FeedbackDialog feedbackDialog;
   public static ExportDialog exportDialog;
+  public static CaptureStatsDialog captureStatsDialog;
   public static ClearLog clearLog;
   public static SelectBlockedApps selectBlockedApps;
   public static SelectToastApps selectToastApps;
@@ -531,6 +532,11 @@ public class NetworkLog extends SherlockFragmentActivity {
         exportDialog = null;
       }
 
+      if(captureStatsDialog != null && captureStatsDialog.dialog != null && captureStatsDialog.dialog.isShowing()) {
+        captureStatsDialog.dismiss();
+        captureStatsDialog = null;
+      }
+
       if(clearLog.dialog != null && clearLog.dialog.isShowing()) {
         clearLog.dialog.dismiss();
         clearLog.dialog = null;
@@ -675,6 +681,10 @@ public class NetworkLog extends SherlockFragmentActivity {
           exportDialog = new ExportDialog(this);
           exportDialog.show();
           break;
+        case R.id.capture_stats:
+          captureStatsDialog = new CaptureStatsDialog(this);
+          captureStatsDialog.show();
+          break;
         case R.id.clearlog:
           clearLog.showClearLogDialog(this);
           break;
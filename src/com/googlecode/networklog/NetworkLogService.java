@@ -32,11 +32,17 @@ import android.graphics.drawable.GradientDrawable;
 
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.io.File;
 import java.io.PrintWriter;
 import java.io.FileWriter;
 import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.Thread;
 import java.lang.Runnable;
 
@@ -48,6 +54,20 @@ public class NetworkLogService extends Service {
   static final int MSG_UPDATE_NOTIFICATION = 3;
   static final int MSG_BROADCAST_LOG_ENTRY = 4;
   static final int MSG_TOGGLE_FOREGROUND   = 5;
+  static final int NFLOG_STATS_INTERVAL    = 10; // seconds
+  static final String HELPER_SOCKET_NAME   = "com.googlecode.networklog.logger";
+  static final int HELPER_CONNECT_TIMEOUT  = 5000; // ms
+  static final int HELPER_READY_TIMEOUT    = 5000; // ms
+  static final String HELPER_READY_LINE    = "{NLREADY}";
+  // grep and cat have no ready marker; they fail right away if at all
+  static final int LOGGER_CHECK_DELAY      = 100; // ms
+  static final int RESTART_DELAY_MIN       = 25; // ms; doubles per quick failure
+  static final int RESTART_DELAY_MAX       = 5000; // ms
+  static final int LOG_METHOD_KMSG_READER  = 3;
+  static final int LOG_METHOD_COUNTERS     = 4;
+  static final int COUNTER_POLL_INTERVAL   = 1000; // ms; throughput is per second
+  static final String KMSG_PATH            = "/proc/kmsg";
+  static final int NO_OWNER_EXPIRE_TIME    = 2000; // ms
   final Messenger messenger = new Messenger(new IncomingHandler(this));
   boolean has_root = false;
   boolean has_binaries = false;
@@ -71,7 +91,10 @@ public class NetworkLogService extends Service {
   public static boolean behindFirewall;
   public static boolean watchRules;
   public static int watchRulesTimeout;
+  public static int netstatRefreshInterval;
   public static boolean throughputBps;
+  public static boolean captureConnections;
+  public static boolean countersOnly;
 
   private class IncomingHandler extends Handler {
     private Context context;
@@ -134,8 +157,16 @@ public class NetworkLogService extends Service {
       }
     }
 
-  private static HashMap<String, Integer> logEntriesMap = new HashMap<String, Integer>();
+  static FlowUidTable flowUids = new FlowUidTable();
+  // flows the socket tables had no owner for at a recent refresh
+  private static FlowUidTable flowsWithoutOwner = new FlowUidTable(32 * 1024, NO_OWNER_EXPIRE_TIME);
+  private static long lastNetstatRefresh;
   private InteractiveShell loggerShell;
+  private LoggerHelper loggerHelper;
+  private BinaryLogReader binaryReader;
+  private UidCounters uidCounters;
+  private GroupReader[] groupReaders;
+  private CaptureStats.HelperReport textStats = new CaptureStats.HelperReport();
   private NetworkLogger logger;
   private static String logfile = null;
   private PrintWriter logWriter = null;
@@ -145,7 +176,14 @@ public class NetworkLogService extends Service {
   private static LogEntry entry;
   private static Boolean start_foreground = true;
   private NetStat netstat = new NetStat();
-  private FastParser parser = new FastParser();
+  // asks the kernel for the owners of flows without one, when enabled
+  private volatile SockDiagResolver resolver;
+  // entries held back, in arrival order, until the resolver has answered
+  // for their flows; each one's query, or -1 if it only keeps its place
+  private LogEntry[] pendingEntries = new LogEntry[SockDiagResolver.BATCH_SIZE];
+  private int[] pendingQueries = new int[SockDiagResolver.BATCH_SIZE];
+  private int pendingCount;
+  private LogLineParser lineParser = new LogLineParser();
 
   public void startForeground(Notification n) {
     startForeground(NOTIFICATION_ID, n);
@@ -283,6 +321,11 @@ public class NetworkLogService extends Service {
   }
 
   public boolean hasRoot() {
+    if(CapabilityCache.hasRoot(this) && !NetworkLog.shell.checkForExit()) {
+      // had root last time and su is running; checked again once logging is
+      return true;
+    }
+
     return SysUtils.checkRoot(this);
   }
 
@@ -338,7 +381,10 @@ public class NetworkLogService extends Service {
       behindFirewall = NetworkLog.settings.getBehindFirewall();
       watchRules = NetworkLog.settings.getWatchRules();
       watchRulesTimeout = NetworkLog.settings.getWatchRulesTimeout();
+      netstatRefreshInterval = NetworkLog.settings.getNetstatRefreshInterval();
       throughputBps = NetworkLog.settings.getThroughputBps();
+      captureConnections = NetworkLog.settings.getCaptureConnections();
+      countersOnly = NetworkLog.settings.getLogMethod() == LOG_METHOD_COUNTERS;
 
       updateLogfileString();
       ThroughputTracker.startUpdater();
@@ -391,7 +437,12 @@ public class NetworkLogService extends Service {
           logfile = logfile_from_intent;
           initEntriesMap();
 
-          if(!startLogging()) {
+          boolean started = startLogging();
+
+          // also when starting failed, in case a cached result was why
+          CapabilityCache.revalidate(NetworkLogService.this);
+
+          if(!started) {
             MyLog.d("[service] start logging error, aborting");
             handler.post(new Runnable() {
               public void run() {
@@ -431,362 +482,324 @@ public class NetworkLogService extends Service {
     return instance;
   }
 
-  public void initEntriesMap() {
-    ArrayList<NetStat.Connection> connections = netstat.getConnections();
-
-    for(NetStat.Connection connection : connections) {
-      String mapKey = connection.src + ":" + connection.spt + " -> " + connection.dst + ":" + connection.dpt;
-
-      if(MyLog.enabled && MyLog.level >= 5) {
-        MyLog.d(5, "[netstat src-dst] New entry " + connection.uid + " for [" + mapKey + "]");
-      }
+  // reads the socket tables into flowUids, at most once per
+  // netstatRefreshInterval; false if it was too soon
+  public boolean initEntriesMap() {
+    long now = System.currentTimeMillis();
 
-      logEntriesMap.put(mapKey, Integer.valueOf(connection.uid));
+    if(now >= lastNetstatRefresh && now - lastNetstatRefresh < netstatRefreshInterval) {
+      CaptureStats.netstatThrottled++;
+      return false;
+    }
 
-      mapKey = connection.dst + ":" + connection.dpt + " -> " + connection.src + ":" + connection.spt;
+    lastNetstatRefresh = now;
+    long start = System.nanoTime();
+    int sockets = netstat.refresh(flowUids);
 
-      if(MyLog.enabled && MyLog.level >= 5) {
-        MyLog.d(5, "[netstat dst-src] New entry " + connection.uid + " for [" + mapKey + "]");
-      }
+    CaptureStats.netstatNanos += System.nanoTime() - start;
+    CaptureStats.netstatSockets += sockets;
+    CaptureStats.netstatRefreshes++;
 
-      logEntriesMap.put(mapKey, Integer.valueOf(connection.uid));
+    if(MyLog.enabled && MyLog.level >= 5) {
+      MyLog.d(5, "[netstat] Read " + sockets + " sockets");
     }
+
+    return true;
   }
 
   public void parseResult(String result) {
     if(MyLog.enabled && MyLog.level >= 10) {
       MyLog.d(10, "--------------- parsing network entry --------------");
     }
-    int pos = 0, lastpos, thisEntry, nextEntry, newline, space;
-    String in, out, src, dst, proto, uidString;
-    int spt, dpt, len, uid;
-    parser.setLine(result.toCharArray(), result.length() - 1);
+    long entriesSeen = CaptureStats.entriesSeen;
+    lineParser.setLine(result);
 
-    while((pos = result.indexOf("{NL}", pos)) > -1) {
-      if(MyLog.enabled && MyLog.level >= 10) {
-        MyLog.d(10, "---- got {NL} at " + pos + " ----");
-      }
+    while(lineParser.nextEntry()) {
+      CaptureStats.entriesSeen++;
 
-      pos += "{NL}".length(); // skip past "{NL}"
-
-      thisEntry = pos;
-      newline = result.indexOf("\n", pos);
-      nextEntry = result.indexOf("{NL}", pos);
-
-      if(newline == -1) {
-        newline = result.length();
+      if(entry == null) {
+        entry = new LogEntry();
       }
 
-      if(nextEntry != -1 && nextEntry < newline) {
-        // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-        pos = newline;
+      if(!lineParser.parseEntry(entry)) {
+        if(MyLog.enabled) {
+          MyLog.d("Skipping corrupted entry [" + lineParser.getEntryText() + "]");
+        }
         continue;
       }
 
-      try {
-        pos = result.indexOf("IN=", pos);
-
-        if(pos == -1 || pos > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
-
-        space = result.indexOf(" ", pos);
-
-        if(space == -1 || space > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
+      // the nflog helper stamps entries with the kernel's time for the
+      // packet; kernel log lines are stamped here
+      if(entry.timestamp <= 0) {
+        entry.timestamp = System.currentTimeMillis();
+      }
 
-        parser.setPos(pos + 3);
-        in = parser.getString();
+      // weighted by the sampling of the rules that captured it
+      entry.weight = Iptables.ruleSampleRate;
+      processEntry(entry);
+    }
 
-        pos = result.indexOf("OUT=", pos);
+    if(CaptureStats.entriesSeen == entriesSeen) {
+      // not a log entry; may be a helper stats report or a kernel
+      // notice that printk rate limiting dropped LOG lines
+      if(!CaptureStats.parseHelperLine(result, textStats)) {
+        CaptureStats.kernelSuppressed += CaptureStats.parseSuppressedLine(result);
+      }
+    }
+  }
 
-        if(pos == -1 || pos > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
+  public void processEntry(LogEntry entry) {
+    SockDiagResolver resolver = this.resolver;
 
-        space = result.indexOf(" ", pos);
+    if(resolver != null) {
+      int query = -1;
 
-        if(space == -1 || space > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
+      if(entry.uid < 0 && !isFlowKnown(entry)) {
+        query = resolver.add(entry);
+      }
 
-        parser.setPos(pos + 4);
-        out = parser.getString();
+      if(query != -1 || pendingCount > 0) {
+        deferEntry(entry, query);
+        return;
+      }
+    }
 
-        pos = result.indexOf("SRC=", pos);
+    attributeEntry(entry);
+  }
 
-        if(pos == -1 || pos > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
+  // whether the flow tables can attribute entry without asking the kernel
+  boolean isFlowKnown(LogEntry entry) {
+    if(flowUids.setFlow(entry.src, entry.spt, entry.dst, entry.dpt)
+        && flowUids.contains(false) && flowUids.contains(true)) {
+      return true;
+    }
 
-        space = result.indexOf(" ", pos);
+    return flowsWithoutOwner.setFlow(entry.src, entry.spt, entry.dst, entry.dpt)
+      && flowsWithoutOwner.contains(false);
+  }
 
-        if(space == -1 || space > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
+  void deferEntry(LogEntry entry, int query) {
+    if(pendingEntries[pendingCount] == null) {
+      pendingEntries[pendingCount] = new LogEntry();
+    }
 
-        parser.setPos(pos + 4);
-        src = parser.getString();
+    pendingEntries[pendingCount].set(entry);
+    pendingQueries[pendingCount] = query;
+    pendingCount++;
 
-        pos = result.indexOf("DST=", pos);
+    if(pendingCount == pendingEntries.length) {
+      flushPendingEntries();
+    }
+  }
 
-        if(pos == -1 || pos > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
+  // sends the resolver's queries and processes the entries that waited for
+  // them; called once a batch is full or the logger has nothing more to read
+  public void flushPendingEntries() {
+    if(pendingCount == 0) {
+      return;
+    }
 
-        space = result.indexOf(" ", pos);
+    SockDiagResolver resolver = this.resolver;
+    boolean resolved = false;
 
-        if(space == -1 || space > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
+    if(resolver != null && resolver.getCount() > 0) {
+      long start = System.nanoTime();
+      resolved = resolver.resolve();
 
-        parser.setPos(pos + 4);
-        dst = parser.getString();
+      if(resolved) {
+        CaptureStats.sockDiagNanos += System.nanoTime() - start;
+        CaptureStats.sockDiagQueries += resolver.getCount();
+        CaptureStats.sockDiagBatches++;
+      } else {
+        Log.w("NetworkLog", "Uid resolver failed; reading socket tables instead");
+        stopResolver(resolver);
+      }
+    }
 
-        pos = result.indexOf("LEN=", pos);
+    int count = pendingCount;
+    pendingCount = 0;
 
-        if(pos == -1 || pos > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
+    for(int i = 0; i < count; i++) {
+      LogEntry entry = pendingEntries[i];
 
-        space = result.indexOf(" ", pos);
+      if(resolved && pendingQueries[i] != -1) {
+        storeOwner(entry, resolver.getUid(pendingQueries[i]));
+      }
 
-        if(space == -1 || space > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
+      attributeEntry(entry);
+    }
 
-        parser.setPos(pos + 4);
-        len = parser.getInt();
+    if(resolver != null) {
+      resolver.clear();
+    }
+  }
 
-        pos = result.indexOf("PROTO=", pos);
+  void storeOwner(LogEntry entry, int uid) {
+    if(uid >= 0) {
+      flowUids.setFlow(entry.src, entry.spt, entry.dst, entry.dpt);
+      flowUids.put(false, uid);
+      flowUids.put(true, uid);
+    } else {
+      CaptureStats.sockDiagNoOwner++;
+      flowsWithoutOwner.setFlow(entry.src, entry.spt, entry.dst, entry.dpt);
+      flowsWithoutOwner.put(false, -1);
+      flowsWithoutOwner.put(true, -1);
+    }
+  }
 
-        if(pos == -1 || pos > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
+  void attributeEntry(LogEntry entry) {
+    CaptureStats.entriesParsed++;
+    int uid = entry.uid;
+    String uidString = entry.uidString;
+    String src = entry.src;
+    String dst = entry.dst;
+    int spt = entry.spt;
+    int dpt = entry.dpt;
+
+    if(MyLog.enabled && MyLog.level >= 9) {
+      MyLog.d(9, "Setting map key: src=[" + src + "] spt=" + spt + " dst=[" + dst + "] dpt=" + dpt);
+    }
 
-        space = result.indexOf(" ", pos);
+    String srcDstMapKey = null, dstSrcMapKey = null;
 
-        if(space == -1 || space > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
+    if(MyLog.enabled) {
+      srcDstMapKey = src + ":" + spt + "->" + dst + ":" + dpt;
+      dstSrcMapKey = dst + ":" + dpt + "->" + src + ":" + spt;
+    }
 
-        parser.setPos(pos + 6);
-        proto = parser.getString();
+    if(MyLog.enabled && MyLog.level >= 10) {
+      MyLog.d(10, "Checking entry for " + uid + " " + srcDstMapKey + " and " + dstSrcMapKey);
+    }
 
-        lastpos = pos;
-        pos = result.indexOf("SPT=", pos);
+    flowUids.setFlow(src, spt, dst, dpt);
+    int srcDstMapUid = flowUids.get(false);
+    int dstSrcMapUid = flowUids.get(true);
 
-        if(pos == -1 || pos > newline) {
-          // no SPT field, probably a broadcast packet
-          spt = 0;
-          pos = lastpos;
-        } else {
-          space = result.indexOf(" ", pos);
+    if(uid < 0) {
+      // Unknown uid, retrieve from entries map
+      if(MyLog.enabled && MyLog.level >= 9) {
+        MyLog.d(9, "Unknown uid");
+      }
 
-          if(space == -1 || space > newline) {
-            // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-            pos = newline;
-            continue;
+      if(srcDstMapUid == FlowUidTable.NOT_FOUND || dstSrcMapUid == FlowUidTable.NOT_FOUND) {
+        if(flowsWithoutOwner.setFlow(src, spt, dst, dpt) && flowsWithoutOwner.get(false) != FlowUidTable.NOT_FOUND) {
+          // a refresh would not find it either
+          CaptureStats.netstatNoOwner++;
+        } else if(resolver == null) {
+          // refresh netstat and try again; the resolver, when running, has
+          // already asked the kernel
+          if(MyLog.enabled && MyLog.level >= 9) {
+            MyLog.d(9, "Refreshing netstat ...");
           }
 
-          parser.setPos(pos + 4);
-          spt = parser.getInt();
-        }
-
-        lastpos = pos;
-        pos = result.indexOf("DPT=", pos);
+          if(initEntriesMap()) {
+            flowUids.setFlow(src, spt, dst, dpt);
+            srcDstMapUid = flowUids.get(false);
+            dstSrcMapUid = flowUids.get(true);
 
-        if(pos == -1 || pos > newline) {
-          // no DPT field, probably a broadcast packet
-          dpt = 0;
-          pos = lastpos;
-        } else {
-          space = result.indexOf(" ", pos);
-
-          if(space == -1 || space > newline) {
-            // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-            pos = newline;
-            continue;
+            if(srcDstMapUid == FlowUidTable.NOT_FOUND || dstSrcMapUid == FlowUidTable.NOT_FOUND) {
+              flowsWithoutOwner.put(false, -1);
+              flowsWithoutOwner.put(true, -1);
+            }
           }
-
-          parser.setPos(pos + 4);
-          dpt = parser.getInt();
-        }
-
-        lastpos = pos;
-        pos = result.indexOf("UID=", pos);
-
-        if(pos == -1 || pos > newline) {
-          uid = -1;
-          uidString = "-1";
-          pos = lastpos;
-        } else {
-          parser.setPos(pos + 4);
-          uid = parser.getInt();
-          parser.setPos(pos + 4);
-          uidString = parser.getString();
         }
-      } catch(Exception e) {
-        Log.e("NetworkLog", "Bad data for: [" + result.substring(thisEntry, newline) + "]", e);
-        pos = newline;
-        continue;
       }
 
-      if(MyLog.enabled && MyLog.level >= 9) {
-        MyLog.d(9, "Setting map key: src=[" + src + "] spt=" + spt + " dst=[" + dst + "] dpt=" + dpt);
-      }
-
-      String srcDstMapKey = src + ":" + spt + "->" + dst + ":" + dpt;
-      String dstSrcMapKey = dst + ":" + dpt + "->" + src + ":" + spt;
-
-      if(MyLog.enabled && MyLog.level >= 10) {
-        MyLog.d(10, "Checking entry for " + uid + " " + srcDstMapKey + " and " + dstSrcMapKey);
-      }
-
-      Integer srcDstMapUid = logEntriesMap.get(srcDstMapKey);
-      Integer dstSrcMapUid = logEntriesMap.get(dstSrcMapKey);
-
-      if(uid < 0) {
-        // Unknown uid, retrieve from entries map
+      if(srcDstMapUid == FlowUidTable.NOT_FOUND) {
         if(MyLog.enabled && MyLog.level >= 9) {
-          MyLog.d(9, "Unknown uid");
-        }
-
-        if(srcDstMapUid == null || dstSrcMapUid == null) {
-          // refresh netstat and try again
-          if(MyLog.enabled && MyLog.level >= 9) {
-            MyLog.d(9, "Refreshing netstat ...");
-          }
-          initEntriesMap();
-          srcDstMapUid = logEntriesMap.get(srcDstMapKey);
-          dstSrcMapUid = logEntriesMap.get(dstSrcMapKey);
+          MyLog.d(9, "[src-dst] No entry uid for " + uid + " [" + srcDstMapKey + "]");
         }
 
-        if(srcDstMapUid == null) {
-          if(MyLog.enabled && MyLog.level >= 9) {
-            MyLog.d(9, "[src-dst] No entry uid for " + uid + " [" + srcDstMapKey + "]");
-          }
-
-          if(uid == -1) {
-            if(dstSrcMapUid != null) {
-              if(MyLog.enabled && MyLog.level >= 9) {
-                MyLog.d(9, "[dst-src] Reassigning kernel packet -1 to " + dstSrcMapUid);
-              }
-              uid = dstSrcMapUid;
-              uidString = StringPool.get(dstSrcMapUid);
-            } else {
-              if(MyLog.enabled && MyLog.level >= 9) {
-                MyLog.d(9, "[src-dst] New kernel entry -1 for [" + srcDstMapKey + "]");
-              }
-              srcDstMapUid = uid;
-              logEntriesMap.put(srcDstMapKey, srcDstMapUid);
+        if(uid == -1) {
+          if(dstSrcMapUid != FlowUidTable.NOT_FOUND) {
+            if(MyLog.enabled && MyLog.level >= 9) {
+              MyLog.d(9, "[dst-src] Reassigning kernel packet -1 to " + dstSrcMapUid);
             }
+            uid = dstSrcMapUid;
+            uidString = StringPool.get(dstSrcMapUid);
           } else {
             if(MyLog.enabled && MyLog.level >= 9) {
-              MyLog.d(9, "[src-dst] New entry " + uid + " for [" + srcDstMapKey + "]");
+              MyLog.d(9, "[src-dst] New kernel entry -1 for [" + srcDstMapKey + "]");
             }
             srcDstMapUid = uid;
-            logEntriesMap.put(srcDstMapKey, srcDstMapUid);
+            flowUids.put(false, srcDstMapUid);
           }
         } else {
           if(MyLog.enabled && MyLog.level >= 9) {
-            MyLog.d(9, "[src-dst] Found entry uid " + srcDstMapUid + " for " + uid + " [" + srcDstMapKey + "]");
+            MyLog.d(9, "[src-dst] New entry " + uid + " for [" + srcDstMapKey + "]");
           }
-          uid = srcDstMapUid;
-          uidString = StringPool.get(srcDstMapUid);
+          srcDstMapUid = uid;
+          flowUids.put(false, srcDstMapUid);
         }
+      } else {
+        if(MyLog.enabled && MyLog.level >= 9) {
+          MyLog.d(9, "[src-dst] Found entry uid " + srcDstMapUid + " for " + uid + " [" + srcDstMapKey + "]");
+        }
+        uid = srcDstMapUid;
+        uidString = StringPool.get(srcDstMapUid);
+      }
 
-        if(dstSrcMapUid == null) {
-          if(MyLog.enabled && MyLog.level >= 9) {
-            MyLog.d(9, "[dst-src] No entry uid for " + uid + " [" + dstSrcMapKey + "]");
-          }
+      if(dstSrcMapUid == FlowUidTable.NOT_FOUND) {
+        if(MyLog.enabled && MyLog.level >= 9) {
+          MyLog.d(9, "[dst-src] No entry uid for " + uid + " [" + dstSrcMapKey + "]");
+        }
 
-          if(uid == -1) {
-            if(srcDstMapUid != null) {
-              if(MyLog.enabled && MyLog.level >= 9) {
-                MyLog.d(9, "[src-dst] Reassigning kernel packet -1 to " + srcDstMapUid);
-              }
-              uid = srcDstMapUid;
-              uidString = StringPool.get(srcDstMapUid);
-            } else {
-              if(MyLog.enabled && MyLog.level >= 9) {
-                MyLog.d(9, "[dst-src] New kernel entry -1 for [" + dstSrcMapKey + "]");
-              }
-              dstSrcMapUid = uid;
-              logEntriesMap.put(dstSrcMapKey, dstSrcMapUid);
+        if(uid == -1) {
+          if(srcDstMapUid != FlowUidTable.NOT_FOUND) {
+            if(MyLog.enabled && MyLog.level >= 9) {
+              MyLog.d(9, "[src-dst] Reassigning kernel packet -1 to " + srcDstMapUid);
             }
+            uid = srcDstMapUid;
+            uidString = StringPool.get(srcDstMapUid);
           } else {
             if(MyLog.enabled && MyLog.level >= 9) {
-              MyLog.d(9, "[dst-src] New entry " + uid + " for [" + dstSrcMapKey + "]");
+              MyLog.d(9, "[dst-src] New kernel entry -1 for [" + dstSrcMapKey + "]");
             }
             dstSrcMapUid = uid;
-            logEntriesMap.put(dstSrcMapKey, dstSrcMapUid);
+            flowUids.put(true, dstSrcMapUid);
           }
         } else {
           if(MyLog.enabled && MyLog.level >= 9) {
-            MyLog.d(9, "[dst-src] Found entry uid " + dstSrcMapUid + " for " + uid + " [" + dstSrcMapKey + "]");
+            MyLog.d(9, "[dst-src] New entry " + uid + " for [" + dstSrcMapKey + "]");
           }
-          uid = dstSrcMapUid;
-          uidString = StringPool.get(dstSrcMapUid);
+          dstSrcMapUid = uid;
+          flowUids.put(true, dstSrcMapUid);
         }
       } else {
         if(MyLog.enabled && MyLog.level >= 9) {
-          MyLog.d(9, "Known uid");
+          MyLog.d(9, "[dst-src] Found entry uid " + dstSrcMapUid + " for " + uid + " [" + dstSrcMapKey + "]");
         }
+        uid = dstSrcMapUid;
+        uidString = StringPool.get(dstSrcMapUid);
+      }
+    } else {
+      if(MyLog.enabled && MyLog.level >= 9) {
+        MyLog.d(9, "Known uid");
+      }
 
-        if(srcDstMapUid == null || dstSrcMapUid == null || srcDstMapUid != uid || dstSrcMapUid != uid) {
-          if(MyLog.enabled && MyLog.level >= 9) {
-            MyLog.d(9, "Updating uid " + uid + " to netstat map for " + srcDstMapKey + " and " + dstSrcMapKey);
-          }
-          logEntriesMap.put(srcDstMapKey, uid);
-          logEntriesMap.put(dstSrcMapKey, uid);
+      if(srcDstMapUid != uid || dstSrcMapUid != uid) {
+        if(MyLog.enabled && MyLog.level >= 9) {
+          MyLog.d(9, "Updating uid " + uid + " to netstat map for " + srcDstMapKey + " and " + dstSrcMapKey);
         }
+        flowUids.put(false, uid);
+        flowUids.put(true, uid);
       }
+    }
 
-      entry = new LogEntry();
-      entry.uid = uid;
-      entry.uidString = uidString;
-      entry.in = in;
-      entry.out = out;
-      entry.src = src;
-      entry.spt = spt;
-      entry.dst = dst;
-      entry.dpt = dpt;
-      entry.proto = proto;
-      entry.len = len;
-      entry.timestamp = System.currentTimeMillis();
+    entry.uid = uid;
+    entry.uidString = uidString;
 
-      if(MyLog.enabled && MyLog.level >= 10) {
-        MyLog.d(10, "+++ entry: (" + entry.uid + ") in=" + entry.in + " out=" + entry.out + " " + entry.src + ":" + entry.spt + " -> " + entry.dst + ":" + entry.dpt + " proto=" + entry.proto + " len=" + entry.len);
-      }
+    if(MyLog.enabled && MyLog.level >= 10) {
+      MyLog.d(10, "+++ entry: (" + entry.uid + ") in=" + entry.in + " out=" + entry.out + " " + entry.src + ":" + entry.spt + " -> " + entry.dst + ":" + entry.dpt + " proto=" + entry.proto + " len=" + entry.len);
+    }
 
-      notifyNewEntry(entry);
+    if(entry.packets == 0) {
+      // a conntrack connection opening; only its uid is wanted, so that
+      // the summaries written when it closes can be attributed
+      return;
     }
+
+    notifyNewEntry(entry);
   }
 
   private static ApplicationsTracker.AppEntry appEntry;
@@ -796,6 +809,7 @@ public class NetworkLogService extends Service {
 
     // check if logging is disabled for this entry's app
     if(appEntry != null && blockedApps.get(appEntry.packageName) != null) {
+      CaptureStats.blockedDropped++;
       return;
     }
 
@@ -825,19 +839,30 @@ public class NetworkLogService extends Service {
 
     // log entry to logfile
     if(logWriter != null) {
-      logWriter.println(entry.timestamp + "," + entry.in + "," + entry.out + "," + entry.uid + "," + entry.src + "," + entry.spt + "," + entry.dst + "," + entry.dpt + "," + entry.len + "," + entry.proto);
+      if(entry.weight > 1) {
+        // sampled; len and packets are as logged, totals scale them by weight
+        logWriter.println(entry.timestamp + "," + entry.in + "," + entry.out + "," + entry.uid + "," + entry.src + "," + entry.spt + "," + entry.dst + "," + entry.dpt + "," + entry.len + "," + entry.proto + "," + entry.packets + "," + entry.weight);
+      } else if(entry.packets == 1) {
+        logWriter.println(entry.timestamp + "," + entry.in + "," + entry.out + "," + entry.uid + "," + entry.src + "," + entry.spt + "," + entry.dst + "," + entry.dpt + "," + entry.len + "," + entry.proto);
+      } else {
+        // flow summary; len is the total for all packets
+        logWriter.println(entry.timestamp + "," + entry.in + "," + entry.out + "," + entry.uid + "," + entry.src + "," + entry.spt + "," + entry.dst + "," + entry.dpt + "," + entry.len + "," + entry.proto + "," + entry.packets);
+      }
     }
 
     if(MyLog.enabled && MyLog.level >= 5) {
       MyLog.d(5, "[service] notifyNewEntry: clients: " + clients.size());
     }
 
+    // entries are reused by the readers, so clients get their own copy
+    LogEntry message = clients.size() > 0 ? entry.copy() : null;
+
     for(int i = clients.size() - 1; i >= 0; i--) {
       try {
         if(MyLog.enabled && MyLog.level >= 5) {
           MyLog.d(5, "[service] Sending entry to " + clients.get(i));
         }
-        clients.get(i).send(Message.obtain(null, MSG_BROADCAST_LOG_ENTRY, entry));
+        clients.get(i).send(Message.obtain(null, MSG_BROADCAST_LOG_ENTRY, message));
       } catch(RemoteException e) {
         // client dead
         MyLog.d("[service] Dead client " + clients.get(i));
@@ -867,17 +892,357 @@ public class NetworkLogService extends Service {
       loggerShell.close();
       loggerShell = null;
     }
+
+    killBinaryLoggerCommand();
+
+    if(resolver != null) {
+      stopResolver(resolver);
+    }
+
+    if(uidCounters != null) {
+      uidCounters.stop();
+      uidCounters = null;
+    }
+  }
+
+  public void killBinaryLoggerCommand() {
+    if(loggerHelper != null) {
+      // helper exits once its socket or stdin is closed
+      loggerHelper.close();
+      loggerHelper = null;
+      binaryReader = null;
+    }
+
+    if(groupReaders != null) {
+      stopGroupReaders(groupReaders);
+      groupReaders = null;
+    }
+  }
+
+  void stopGroupReaders(GroupReader[] readers) {
+    for(GroupReader reader : readers) {
+      if(reader != null) {
+        reader.stop();
+      }
+    }
+  }
+
+  ShellCommand startHelper(String commandLine, String tag) {
+    ShellCommand command = new ShellCommand(new String[] { "su", "-c", commandLine }, tag);
+
+    if(!command.startRaw()) {
+      String error = command.getError(true);
+      Log.e("NetworkLog", "Error starting binary logger: " + error);
+      SysUtils.showError(this, getString(R.string.error_default_title), "Error starting logger: " + error);
+      return null;
+    }
+
+    return command;
+  }
+
+  boolean checkHelper(ShellCommand command) {
+    if(command.checkForExit(true)) {
+      String error = "Error starting logger: exit " + command.exitval + "\n" + command.getErrorOutput();
+      Log.e("NetworkLog", error);
+      command.close();
+      SysUtils.showError(this, getString(R.string.error_default_title), error);
+      return false;
+    }
+
+    return true;
+  }
+
+  public boolean startBinaryLoggerCommand(String binary) {
+    killBinaryLoggerCommand();
+
+    String options = getNflogOptions();
+
+    int aggregateInterval = NetworkLog.settings.getNflogAggregateInterval();
+    if(aggregateInterval > 0) {
+      options += " -a " + aggregateInterval;
+    }
+
+    options += " -b";
+
+    int groups = NetworkLog.settings.getNflogGroups();
+    if(groups > 1) {
+      return startGroupLoggers(binary + options, groups);
+    }
+
+    return startSingleLogger(binary + options);
+  }
+
+  // LOG target lines parsed by the nflog helper's kernel log reader, which
+  // writes the same records as the NFLOG path
+  public boolean startKmsgLoggerCommand(String binary) {
+    killBinaryLoggerCommand();
+
+    StringBuilder options = new StringBuilder(" -s ").append(NFLOG_STATS_INTERVAL);
+
+    int flushLatency = NetworkLog.settings.getNflogFlushLatency();
+    if(flushLatency >= 0) {
+      options.append(" -f ").append(flushLatency);
+    }
+
+    int aggregateInterval = NetworkLog.settings.getNflogAggregateInterval();
+    if(aggregateInterval > 0) {
+      options.append(" -a ").append(aggregateInterval);
+    }
+
+    options.append(" -b -k ").append(KMSG_PATH);
+
+    return startSingleLogger(binary + options);
+  }
+
+  // one summary per connection from conntrack events; see the -c option
+  // of the nflog helper
+  public boolean startConntrackLoggerCommand(String binary) {
+    killBinaryLoggerCommand();
+
+    StringBuilder options = new StringBuilder(" -s ").append(NFLOG_STATS_INTERVAL);
+
+    int socketBuffer = NetworkLog.settings.getNflogSocketBuffer();
+    if(socketBuffer > 0) {
+      options.append(" -r ").append(socketBuffer);
+    }
+
+    int flushLatency = NetworkLog.settings.getNflogFlushLatency();
+    if(flushLatency >= 0) {
+      options.append(" -f ").append(flushLatency);
+    }
+
+    options.append(" -b -c");
+
+    return startSingleLogger(binary + options);
+  }
+
+  boolean startSingleLogger(String commandLine) {
+    LoggerHelper helper = new LoggerHelper(0);
+
+    if(!helper.start(commandLine)) {
+      return false;
+    }
+
+    if(!helper.connect()) {
+      return false;
+    }
+
+    loggerHelper = helper;
+    binaryReader = helper.reader;
+    return true;
+  }
+
+  // one helper per NFLOG group; see Iptables.addRuleCommands for the split
+  boolean startGroupLoggers(String commandLine, int groups) {
+    LoggerHelper[] helpers = new LoggerHelper[groups];
+
+    for(int group = 0; group < groups; group++) {
+      helpers[group] = new LoggerHelper(group);
+
+      if(!helpers[group].start(commandLine)) {
+        closeHelpers(helpers);
+        return false;
+      }
+    }
+
+    GroupReader[] readers = new GroupReader[groups];
+
+    for(int group = 0; group < groups; group++) {
+      if(!helpers[group].connect()) {
+        closeHelpers(helpers);
+        return false;
+      }
+
+      readers[group] = new GroupReader(helpers[group]);
+    }
+
+    groupReaders = readers;
+    return true;
+  }
+
+  void closeHelpers(LoggerHelper[] helpers) {
+    for(LoggerHelper helper : helpers) {
+      if(helper != null) {
+        helper.close();
+      }
+    }
+  }
+
+  // a binary logger helper for one NFLOG group and the stream its records
+  // arrive on: its own socket when one can be opened, else the su pipe
+  class LoggerHelper {
+    int group;
+    ShellCommand command;
+    HelperSocket socket;
+    BinaryLogReader reader;
+
+    LoggerHelper(int group) {
+      this.group = group;
+    }
+
+    boolean start(String commandLine) {
+      try {
+        socket = new HelperSocket(HELPER_SOCKET_NAME + group);
+        commandLine += " -u " + socket.name;
+      } catch(IOException e) {
+        Log.w("NetworkLog", "Unable to open logger socket; reading logger output instead", e);
+        socket = null;
+      }
+
+      command = startHelper(commandLine + " " + group, "LoggerCommand" + group);
+
+      if(command == null) {
+        close();
+        return false;
+      }
+
+      return true;
+    }
+
+    // returns once the helper is logging, or false if it did not get there
+    boolean connect() {
+      if(!checkHelper(command)) {
+        close();
+        return false;
+      }
+
+      InputStream in = null;
+
+      if(socket == null) {
+        in = command.getInputStream();
+      } else if(socket.accept(HELPER_CONNECT_TIMEOUT)) {
+        try {
+          in = socket.getInputStream();
+        } catch(IOException e) {
+          Log.e("NetworkLog", "Exception getting logger socket stream", e);
+        }
+      }
+
+      if(in == null) {
+        String error = "Error starting logger: logger did not connect\n" + command.getErrorOutput();
+        Log.e("NetworkLog", error);
+        close();
+        SysUtils.showError(NetworkLogService.this, getString(R.string.error_default_title), error);
+        return false;
+      }
+
+      reader = new BinaryLogReader(in);
+
+      if(!waitForReady()) {
+        String error = "Error starting logger: logger did not start logging\n" + command.getErrorOutput();
+        Log.e("NetworkLog", error);
+        close();
+        SysUtils.showError(NetworkLogService.this, getString(R.string.error_default_title), error);
+        return false;
+      }
+
+      return true;
+    }
+
+    // closing the stream on timeout ends the blocked read
+    boolean waitForReady() {
+      final BinaryLogReader waiting = reader;
+
+      Thread watchdog = new Thread(new Runnable() {
+        public void run() {
+          try {
+            Thread.sleep(HELPER_READY_TIMEOUT);
+          } catch(InterruptedException e) {
+            return;
+          }
+
+          Log.w("NetworkLog", "Logger helper " + group + " not ready after " + HELPER_READY_TIMEOUT + " ms");
+          waiting.close();
+        }
+      }, "LoggerReadyWatchdog");
+      watchdog.start();
+
+      try {
+        return reader.waitForReady();
+      } catch(IOException e) {
+        Log.e("NetworkLog", "Exception waiting for logger helper " + group, e);
+        return false;
+      } finally {
+        watchdog.interrupt();
+      }
+    }
+
+    void close() {
+      if(socket != null) {
+        socket.close();
+        socket = null;
+      }
+
+      if(command != null) {
+        command.close();
+        command = null;
+      }
+    }
+  }
+
+  // optional; without it, entries are attributed from the socket tables
+  void startResolver() {
+    SockDiagResolver newResolver = new SockDiagResolver();
+
+    if(newResolver.start(SysUtils.getNflogBinary(this))) {
+      resolver = newResolver;
+    } else {
+      Log.w("NetworkLog", "Uid resolver unavailable; reading socket tables instead");
+    }
+  }
+
+  void stopResolver(SockDiagResolver oldResolver) {
+    oldResolver.stop();
+
+    if(resolver == oldResolver) {
+      resolver = null;
+    }
   }
 
   public boolean startLoggerCommand() {
     MyLog.d("Starting iptables logger");
 
+    if(countersOnly) {
+      UidCounters counters = new UidCounters(this);
+      if(!counters.start()) {
+        return false;
+      }
+      uidCounters = counters;
+      return true;
+    }
+
+    if(captureConnections) {
+      String binary = SysUtils.getNflogBinary(this);
+      if(binary == null) {
+        return false;
+      }
+      if(!SysUtils.nflogHasOptions(this)) {
+        Log.e("NetworkLog", "nflog helper does not support connection capture");
+        SysUtils.showError(this, getString(R.string.error_default_title), getString(R.string.error_nflog_helper_outdated));
+        return false;
+      }
+      return startConntrackLoggerCommand(binary);
+    }
+
     if(Iptables.targets == null && Iptables.getTargets(this) == false) {
       return false;
     }
 
+    // options, the ready marker and binary records need a newer helper than
+    // the first one, which takes only the queue number
+    boolean helperOptions = SysUtils.nflogHasOptions(this);
+
     String binary;
-    if(Iptables.targets.get("LOG") != null) {
+    if(Iptables.targets.get("LOG") != null && NetworkLog.settings.getLogMethod() == LOG_METHOD_KMSG_READER && helperOptions) {
+      binary = SysUtils.getNflogBinary(this);
+      if(binary == null) {
+        return false;
+      }
+      return startKmsgLoggerCommand(binary);
+    } else if(Iptables.targets.get("LOG") != null) {
+      if(NetworkLog.settings.getLogMethod() == LOG_METHOD_KMSG_READER) {
+        Log.w("NetworkLog", "nflog helper does not support reading the kernel log; using grep");
+      }
       binary = SysUtils.getGrepBinary(this);
       if(binary == null) {
         return false;
@@ -895,6 +1260,16 @@ public class NetworkLogService extends Service {
       return false;
     }
 
+    // flow summaries and multiple groups are read only as binary records
+    if(Iptables.targets.get("LOG") == null && (NetworkLog.settings.getNflogBinaryOutput()
+          || NetworkLog.settings.getNflogAggregateInterval() > 0
+          || NetworkLog.settings.getNflogGroups() > 1)) {
+      if(helperOptions) {
+        return startBinaryLoggerCommand(binary);
+      }
+      Log.w("NetworkLog", "nflog helper does not support binary output; using text output");
+    }
+
     if(loggerShell == null) {
       loggerShell = new InteractiveShell("su", "LoggerShell");
       loggerShell.start();
@@ -910,22 +1285,28 @@ public class NetworkLogService extends Service {
     if(Iptables.targets.get("LOG") != null) {
       switch(NetworkLog.settings.getLogMethod()) {
         case 1:
-          loggerShell.sendCommand("grep '{NL}' /proc/kmsg &", InteractiveShell.BACKGROUND);
+          loggerShell.sendCommand("grep -e '{NL}' -e ' suppressed' /proc/kmsg &", InteractiveShell.BACKGROUND);
           break;
         case 2:
           loggerShell.sendCommand("cat /proc/kmsg &", InteractiveShell.BACKGROUND);
           break;
         default:
-          loggerShell.sendCommand(binary + " '{NL}' /proc/kmsg &", InteractiveShell.BACKGROUND);
+          loggerShell.sendCommand(binary + " -e '{NL}' -e ' suppressed' /proc/kmsg &", InteractiveShell.BACKGROUND);
       }
     } else if(Iptables.targets.get("NFLOG") != null) {
-      loggerShell.sendCommand(binary + " 0 &", InteractiveShell.BACKGROUND);
+      textStats = new CaptureStats.HelperReport();
+      loggerShell.sendCommand(binary + (helperOptions ? getNflogOptions() : "") + " 0 &", InteractiveShell.BACKGROUND);
     }
 
-    try {
-      // give logger command a chance to do its thing
-      Thread.sleep(1500);
-    } catch (Exception e) {}
+    if(Iptables.targets.get("LOG") == null && helperOptions) {
+      if(!waitForReadyLine()) {
+        Log.w("NetworkLog", "Logger did not report ready within " + HELPER_READY_TIMEOUT + " ms");
+      }
+    } else {
+      try {
+        Thread.sleep(LOGGER_CHECK_DELAY);
+      } catch (Exception e) {}
+    }
 
     if(loggerShell.hasError()) {
       SysUtils.showError(this, getString(R.string.error_default_title), loggerShell.getError(true));
@@ -952,6 +1333,68 @@ public class NetworkLogService extends Service {
     return true;
   }
 
+  // reads the nflog helper's text output up to its ready line, which comes
+  // before anything else; false on timeout or if the shell went away
+  boolean waitForReadyLine() {
+    long deadline = System.currentTimeMillis() + HELPER_READY_TIMEOUT;
+    long remaining;
+
+    while((remaining = deadline - System.currentTimeMillis()) > 0) {
+      String line = loggerShell.readLine(remaining);
+
+      if(line == null) {
+        return false;
+      }
+
+      if(line.startsWith(HELPER_READY_LINE)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  public static String getNflogOptions() {
+    // capture statistics for the capture health dialog
+    StringBuilder options = new StringBuilder(" -s ").append(NFLOG_STATS_INTERVAL);
+
+    if(NetworkLog.settings.getNflogHeaderOnly()) {
+      options.append(" -H");
+    }
+
+    int queueThreshold = NetworkLog.settings.getNflogQueueThreshold();
+    if(queueThreshold > 1) {
+      options.append(" -q ").append(queueThreshold);
+    }
+
+    int flushTimeout = NetworkLog.settings.getNflogFlushTimeout();
+    if(flushTimeout > 0) {
+      options.append(" -t ").append(flushTimeout);
+    }
+
+    int messageBuffer = NetworkLog.settings.getNflogMessageBuffer();
+    if(messageBuffer > 0) {
+      options.append(" -B ").append(messageBuffer);
+    }
+
+    int socketBuffer = NetworkLog.settings.getNflogSocketBuffer();
+    if(socketBuffer > 0) {
+      options.append(" -r ").append(socketBuffer);
+    }
+
+    int flushLatency = NetworkLog.settings.getNflogFlushLatency();
+    if(flushLatency >= 0) {
+      options.append(" -f ").append(flushLatency);
+    }
+
+    return options.toString();
+  }
+
+  // false when the logger does not need the per-packet logging rules
+  static boolean logsPackets() {
+    return !captureConnections && !countersOnly;
+  }
+
   public boolean startLogging() {
     killLoggerCommand();
     MyLog.d("adding logging rules");
@@ -963,6 +1406,10 @@ public class NetworkLogService extends Service {
       return false;
     }
 
+    if(!countersOnly && NetworkLog.settings.getSockDiagResolver() && SysUtils.nflogHasOptions(this)) {
+      startResolver();
+    }
+
     logger = new NetworkLogger();
     new Thread(logger, "NetworkLogger").start();
 
@@ -982,51 +1429,52 @@ public class NetworkLogService extends Service {
   }
 
   public class NetworkLogger implements Runnable {
-    boolean running = false;
+    volatile boolean running = false;
+    Thread thread;
 
+    // also wakes the logger thread if it is waiting for a text line, so it
+    // cannot take the output of the commands that stop the logger
     public void stop() {
       running = false;
+
+      if(thread != null) {
+        thread.interrupt();
+      }
     }
 
     public void run() {
       Log.d("NetworkLog", "Network logger " + this + " starting");
-      String result;
+      thread = Thread.currentThread();
       running = true;
+      int restartDelay = RESTART_DELAY_MIN;
 
       while(true) {
-        while(running && loggerShell.checkForExit() == false) {
-          if(loggerShell.stdoutAvailable()) {
-            result = loggerShell.readLine();
-          } else {
-            try {
-              Thread.sleep(500);
-            }
-            catch(Exception e) {
-              Log.d("NetworkLog", "NetworkLogger exception while sleeping", e);
-            }
-
-            continue;
-          }
-
-          if(running == false) {
-            break;
-          }
-
-          if(result == null) {
-            Log.d("NetworkLog", "Network logger " + this + " read null; exiting");
-            break;
-          }
-
-          parseResult(result);
+        long started = System.currentTimeMillis();
+
+        if(uidCounters != null) {
+          readCounters(uidCounters);
+        } else if(groupReaders != null) {
+          readGroupEntries(groupReaders);
+        } else if(binaryReader != null) {
+          readBinaryEntries(binaryReader);
+        } else {
+          readTextEntries();
         }
 
         if(running != false) {
-          Log.d("NetworkLog", "Network logger " + this + " terminated unexpectedly, restarting in 5 seconds");
+          // back off only while the logger keeps failing right away
+          if(System.currentTimeMillis() - started > RESTART_DELAY_MAX) {
+            restartDelay = RESTART_DELAY_MIN;
+          }
+
+          Log.d("NetworkLog", "Network logger " + this + " terminated unexpectedly, restarting in " + restartDelay + " ms");
           try {
-            Thread.sleep(5000);
+            Thread.sleep(restartDelay);
           } catch (Exception e) {
             // ignored
           }
+          restartDelay = Math.min(restartDelay * 2, RESTART_DELAY_MAX);
+
           if(!startLoggerCommand()) {
             SysUtils.showError(context, context.getResources().getString(R.string.error_default_title),
                 "Logger process has terminated unexpectedly and was unable to restart");
@@ -1038,6 +1486,199 @@ public class NetworkLogService extends Service {
         }
       }
     }
+
+    // blocks for each line; the shell's reader wakes it when the logger
+    // exits
+    void readTextEntries() {
+      InteractiveShell shell = loggerShell;
+      String result;
+
+      while(running) {
+        if(!shell.stdoutAvailable()) {
+          // nothing else to read yet
+          flushPendingEntries();
+        }
+
+        result = shell.readLine();
+
+        if(running == false) {
+          break;
+        }
+
+        if(result == null) {
+          Log.d("NetworkLog", "Network logger " + this + " read null; exiting");
+          break;
+        }
+
+        parseResult(result);
+      }
+
+      flushPendingEntries();
+    }
+
+    void readCounters(UidCounters counters) {
+      while(running && counters.poll()) {
+        try {
+          Thread.sleep(COUNTER_POLL_INTERVAL);
+        } catch(InterruptedException e) {
+          Log.d("NetworkLog", "Network logger " + this + " interrupted", e);
+        }
+      }
+    }
+
+    void readBinaryEntries(BinaryLogReader reader) {
+      LogEntry entry;
+
+      try {
+        while(running && (entry = reader.readEntry()) != null) {
+          CaptureStats.entriesSeen++;
+          entry.weight = Iptables.ruleSampleRate;
+          processEntry(entry);
+
+          if(!reader.hasBuffered()) {
+            flushPendingEntries();
+          }
+        }
+      } catch(IOException e) {
+        if(running) {
+          Log.e("NetworkLog", "Network logger " + this + " exception reading binary log", e);
+        }
+      }
+
+      flushPendingEntries();
+
+      if(running) {
+        Log.d("NetworkLog", "Network logger " + this + " reached end of binary log");
+      }
+    }
+
+    // the ordered stage behind the group readers: entries are processed
+    // here only, so processEntry and its state stay single-threaded
+    void readGroupEntries(GroupReader[] readers) {
+      BlockingQueue<LogEntry> queue = new ArrayBlockingQueue<LogEntry>(MERGE_QUEUE_SIZE);
+      ArrayList<LogEntry> batch = new ArrayList<LogEntry>(MERGE_BATCH_SIZE);
+
+      for(GroupReader reader : readers) {
+        reader.start(queue);
+      }
+
+      try {
+        boolean ended = false;
+
+        // blocks until entries arrive; a group reader that ends leaves
+        // END_OF_GROUP, and stop() interrupts the wait
+        while(running && !ended) {
+          batch.add(queue.take());
+          queue.drainTo(batch, MERGE_BATCH_SIZE - 1);
+          ended = batch.remove(END_OF_GROUP);
+
+          // groups are read concurrently; restore time order within what has
+          // arrived (stable, so same-time entries keep their arrival order)
+          Collections.sort(batch, timestampComparator);
+
+          for(LogEntry e : batch) {
+            CaptureStats.entriesSeen++;
+            processEntry(e);
+          }
+
+          batch.clear();
+
+          if(queue.isEmpty()) {
+            flushPendingEntries();
+          }
+        }
+      } catch(InterruptedException e) {
+        Log.d("NetworkLog", "Network logger " + this + " interrupted", e);
+      }
+
+      flushPendingEntries();
+
+      if(running) {
+        Log.d("NetworkLog", "Network logger " + this + " lost a group reader");
+      }
+    }
+  }
+
+  static final int MERGE_QUEUE_SIZE = 4096;
+  static final int MERGE_BATCH_SIZE = 256;
+  // queued by a GroupReader when it ends; compared by identity
+  static final LogEntry END_OF_GROUP = new LogEntry();
+
+  static final Comparator<LogEntry> timestampComparator = new Comparator<LogEntry>() {
+    public int compare(LogEntry a, LogEntry b) {
+      return a.timestamp < b.timestamp ? -1 : (a.timestamp > b.timestamp ? 1 : 0);
+    }
+  };
+
+  // reads one NFLOG group's helper and hands copies of its entries to the
+  // NetworkLogger, blocking (and so letting the helper's socket buffer
+  // absorb the burst) when the NetworkLogger falls behind
+  class GroupReader implements Runnable {
+    int group;
+    LoggerHelper helper;
+    BinaryLogReader reader;
+    BlockingQueue<LogEntry> queue;
+    Thread thread;
+    volatile boolean running = false;
+
+    GroupReader(LoggerHelper helper) {
+      this.group = helper.group;
+      this.helper = helper;
+      reader = helper.reader;
+    }
+
+    void start(BlockingQueue<LogEntry> queue) {
+      this.queue = queue;
+      running = true;
+      thread = new Thread(this, "NetworkLogger-" + group);
+      thread.start();
+    }
+
+    // closing the helper ends a blocked read; the interrupt ends a wait for
+    // room in the queue
+    void stop() {
+      running = false;
+      helper.close();
+
+      if(thread != null) {
+        thread.interrupt();
+      }
+    }
+
+    public void run() {
+      LogEntry entry;
+
+      try {
+        while(running && (entry = reader.readEntry()) != null) {
+          // weighted as captured, not as of when it is processed
+          entry.weight = Iptables.ruleSampleRate;
+
+          // waits while the NetworkLogger is behind
+          queue.put(entry.copy());
+        }
+
+        if(running) {
+          Log.d("NetworkLog", "Group " + group + " reader reached end of binary log");
+        }
+      } catch(IOException e) {
+        if(running) {
+          Log.e("NetworkLog", "Group " + group + " reader exception reading binary log", e);
+        }
+      } catch(InterruptedException e) {
+        Log.d("NetworkLog", "Group " + group + " reader interrupted", e);
+      }
+
+      if(running) {
+        // wakes the NetworkLogger, which restarts the loggers
+        try {
+          queue.put(END_OF_GROUP);
+        } catch(InterruptedException e) {
+          Log.d("NetworkLog", "Group " + group + " reader interrupted", e);
+        }
+      }
+
+      running = false;
+    }
   }
 
   public static void updateLogfileString() {
@@ -1117,9 +1758,6 @@ public class NetworkLogService extends Service {
 
     @Override
       public void run() {
-        String md5sum;
-        String lastMd5sum = null;
-
         running = true;
         while(running) {
           try {
@@ -1132,17 +1770,9 @@ public class NetworkLogService extends Service {
             break;
           }
 
-          md5sum = MD5Sum.digestString(Iptables.getRules(context));
-
-          if(lastMd5sum == null) {
-            lastMd5sum = md5sum;
-          } else {
-            if(!md5sum.equals(lastMd5sum)) {
-              Log.i("NetworkLog", "Iptables rules changed, reapplying Network Log rules");
-              Iptables.removeRules(context);
-              Iptables.addRules(context);
-              lastMd5sum = MD5Sum.digestString(Iptables.getRules(context));
-            }
+          if(!Iptables.checkInstalledRules(context)) {
+            Log.i("NetworkLog", "Network Log rules missing, reapplying Network Log rules");
+            Iptables.addRules(context);
           }
         }
       }
@@ -1152,7 +1782,7 @@ public class NetworkLogService extends Service {
 
   void startWatchingRules() {
     stopWatchingRules();
-    if(watchRules) {
+    if(watchRules && logsPackets()) {
       rulesWatcher = new RulesWatcher();
       rulesWatcher.start();
     }
@@ -57,7 +57,7 @@ public class OverallAppTimelineGraph extends GraphActivity
             uidNameMap.put(item.app.uid, "(" + item.app.uid + ") " + item.app.name);
           }
 
-          packetList.add(new PacketGraphItem(item.timestamp, item.len));
+          packetList.add(new PacketGraphItem(item.timestamp, (long) item.len * item.weight));
         }
       }
 
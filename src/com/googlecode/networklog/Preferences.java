@@ -295,12 +295,21 @@ public class Preferences extends SherlockPreferenceActivity implements OnPrefere
           if(Iptables.targets.get("LOG") == null) {
             Log.w("NetworkLog", "Logging method preference not applicable to this device");
 
+            // per-app counters do not depend on the LOG target
+            final ListPreference logMethod = (ListPreference) preference;
             AlertDialog.Builder builder = new AlertDialog.Builder(this);
             builder.setTitle(getString(R.string.log_method_not_applicable_title))
-              .setMessage(getString(R.string.log_method_not_applicable_text))
+              .setMessage(getString(R.string.log_method_counters_only_text))
               .setCancelable(true)
-              .setNeutralButton(getString(R.string.ok), new DialogInterface.OnClickListener() {
+              .setPositiveButton(getString(R.string.log_method_four), new DialogInterface.OnClickListener() {
                 public void onClick(DialogInterface dialog, int id) {
+                  logMethod.setValue(String.valueOf(NetworkLogService.LOG_METHOD_COUNTERS));
+                  dialog.dismiss();
+                }
+              })
+              .setNegativeButton(getString(R.string.log_method_default), new DialogInterface.OnClickListener() {
+                public void onClick(DialogInterface dialog, int id) {
+                  logMethod.setValue("0");
                   dialog.dismiss();
                 }
               });
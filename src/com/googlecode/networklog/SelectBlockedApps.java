@@ -27,5 +27,10 @@ public class SelectBlockedApps extends AppsSelector
   public void positiveButton() {
     NetworkLogService.blockedApps = apps;
     NetworkLog.selectBlockedApps = null;
+
+    if(NetworkLogService.instance != null) {
+      // stop excluded apps' packets in the kernel
+      Iptables.updateExcludedApps(NetworkLogService.instance);
+    }
   }
 }
@@ -62,10 +62,30 @@ public class Settings implements OnSharedPreferenceChangeListener {
     return Integer.parseInt(prefs.getString("watch_rules_timeout", "120000"));
   }
 
+  public int getNetstatRefreshInterval() {
+    return Integer.parseInt(prefs.getString("netstat_refresh_interval", "100"));
+  }
+
+  public boolean getSockDiagResolver() {
+    return prefs.getBoolean("sock_diag_resolver", false);
+  }
+
   public boolean getBehindFirewall() {
     return prefs.getBoolean("behind_firewall", false);
   }
 
+  public String getLogExclusions() {
+    return prefs.getString("log_exclusions", "");
+  }
+
+  public int getSampleRate() {
+    return Integer.parseInt(prefs.getString("sample_rate", "1"));
+  }
+
+  public boolean getCaptureConnections() {
+    return prefs.getBoolean("capture_connections", false);
+  }
+
   public boolean getThroughputBps() {
     return prefs.getBoolean("throughput_bps", true);
   }
@@ -232,6 +252,42 @@ public class Settings implements OnSharedPreferenceChangeListener {
     return Integer.parseInt(prefs.getString("log_method", "0"));
   }
 
+  public boolean getNflogHeaderOnly() {
+    return prefs.getBoolean("nflog_header_only", false);
+  }
+
+  public int getNflogQueueThreshold() {
+    return Integer.parseInt(prefs.getString("nflog_queue_threshold", "1"));
+  }
+
+  public int getNflogFlushTimeout() {
+    return Integer.parseInt(prefs.getString("nflog_flush_timeout", "0"));
+  }
+
+  public int getNflogMessageBuffer() {
+    return Integer.parseInt(prefs.getString("nflog_message_buffer", "0"));
+  }
+
+  public int getNflogSocketBuffer() {
+    return Integer.parseInt(prefs.getString("nflog_socket_buffer", "0"));
+  }
+
+  public int getNflogFlushLatency() {
+    return Integer.parseInt(prefs.getString("nflog_flush_latency", "-1"));
+  }
+
+  public int getNflogAggregateInterval() {
+    return Integer.parseInt(prefs.getString("nflog_aggregate_interval", "0"));
+  }
+
+  public int getNflogGroups() {
+    return Integer.parseInt(prefs.getString("nflog_groups", "1"));
+  }
+
+  public boolean getNflogBinaryOutput() {
+    return prefs.getBoolean("nflog_binary_output", false);
+  }
+
   public void setResolveHosts(boolean value) {
     SharedPreferences.Editor editor = prefs.edit();
     editor.putBoolean("resolve_hosts", value);
@@ -442,12 +498,42 @@ public class Settings implements OnSharedPreferenceChangeListener {
     editor.commit();
   }
 
+  public void setNetstatRefreshInterval(int value) {
+    SharedPreferences.Editor editor = prefs.edit();
+    editor.putString("netstat_refresh_interval", String.valueOf(value));
+    editor.commit();
+  }
+
+  public void setSockDiagResolver(boolean value) {
+    SharedPreferences.Editor editor = prefs.edit();
+    editor.putBoolean("sock_diag_resolver", value);
+    editor.commit();
+  }
+
   public void setBehindFirewall(boolean value) {
     SharedPreferences.Editor editor = prefs.edit();
     editor.putBoolean("behind_firewall", value);
     editor.commit();
   }
 
+  public void setLogExclusions(String value) {
+    SharedPreferences.Editor editor = prefs.edit();
+    editor.putString("log_exclusions", value);
+    editor.commit();
+  }
+
+  public void setSampleRate(int value) {
+    SharedPreferences.Editor editor = prefs.edit();
+    editor.putString("sample_rate", String.valueOf(value));
+    editor.commit();
+  }
+
+  public void setCaptureConnections(boolean value) {
+    SharedPreferences.Editor editor = prefs.edit();
+    editor.putBoolean("capture_connections", value);
+    editor.commit();
+  }
+
   public void setThroughputBps(boolean value) {
     SharedPreferences.Editor editor = prefs.edit();
     editor.putBoolean("throughput_bps", value);
@@ -502,6 +588,60 @@ public class Settings implements OnSharedPreferenceChangeListener {
     editor.commit();
   }
 
+  public void setNflogHeaderOnly(boolean value) {
+    SharedPreferences.Editor editor = prefs.edit();
+    editor.putBoolean("nflog_header_only", value);
+    editor.commit();
+  }
+
+  public void setNflogQueueThreshold(int value) {
+    SharedPreferences.Editor editor = prefs.edit();
+    editor.putString("nflog_queue_threshold", String.valueOf(value));
+    editor.commit();
+  }
+
+  public void setNflogFlushTimeout(int value) {
+    SharedPreferences.Editor editor = prefs.edit();
+    editor.putString("nflog_flush_timeout", String.valueOf(value));
+    editor.commit();
+  }
+
+  public void setNflogMessageBuffer(int value) {
+    SharedPreferences.Editor editor = prefs.edit();
+    editor.putString("nflog_message_buffer", String.valueOf(value));
+    editor.commit();
+  }
+
+  public void setNflogSocketBuffer(int value) {
+    SharedPreferences.Editor editor = prefs.edit();
+    editor.putString("nflog_socket_buffer", String.valueOf(value));
+    editor.commit();
+  }
+
+  public void setNflogFlushLatency(int value) {
+    SharedPreferences.Editor editor = prefs.edit();
+    editor.putString("nflog_flush_latency", String.valueOf(value));
+    editor.commit();
+  }
+
+  public void setNflogAggregateInterval(int value) {
+    SharedPreferences.Editor editor = prefs.edit();
+    editor.putString("nflog_aggregate_interval", String.valueOf(value));
+    editor.commit();
+  }
+
+  public void setNflogGroups(int value) {
+    SharedPreferences.Editor editor = prefs.edit();
+    editor.putString("nflog_groups", String.valueOf(value));
+    editor.commit();
+  }
+
+  public void setNflogBinaryOutput(boolean value) {
+    SharedPreferences.Editor editor = prefs.edit();
+    editor.putBoolean("nflog_binary_output", value);
+    editor.commit();
+  }
+
   public void setLogFile(String value) {
     String oldValue = prefs.getString("logfile", null);
 
@@ -543,6 +683,20 @@ public class Settings implements OnSharedPreferenceChangeListener {
         }
       }
 
+      if(key.equals("nflog_header_only") || key.equals("nflog_queue_threshold") || key.equals("nflog_flush_timeout")
+          || key.equals("nflog_flush_latency") || key.equals("nflog_binary_output")
+          || key.equals("nflog_aggregate_interval") || key.equals("nflog_message_buffer")
+          || key.equals("nflog_socket_buffer") || key.equals("nflog_groups")
+          || key.equals("capture_connections") || key.equals("sock_diag_resolver")) {
+        MyLog.d("New " + key + " value; restarting logger");
+        // logger options are only read when the logger command starts
+        if(NetworkLogService.instance != null) {
+          NetworkLog.instance.stopService();
+          NetworkLog.instance.startService();
+        }
+        return;
+      }
+
       if(key.equals("logfile")) {
         String value = prefs.getString(key, null);
         MyLog.d("New " + key + " value [" + value + "]");
@@ -713,12 +867,28 @@ public class Settings implements OnSharedPreferenceChangeListener {
         return;
       }
 
+      if(key.equals("netstat_refresh_interval")) {
+        int value = Integer.parseInt(prefs.getString(key, "100"));
+        MyLog.d("New " + key + " value [" + value + "]");
+        NetworkLogService.netstatRefreshInterval = value;
+        return;
+      }
+
+      if(key.equals("log_exclusions") || key.equals("sample_rate")) {
+        MyLog.d("New " + key + " value [" + prefs.getString(key, "") + "]");
+        if(NetworkLogService.instance != null) {
+          // replaces the installed rules
+          Iptables.addRules(context);
+        }
+        return;
+      }
+
       if(key.equals("behind_firewall")) {
         boolean value = prefs.getBoolean(key, false);
         MyLog.d("New " + key + " value [" + value + "]");
         NetworkLogService.behindFirewall = value;
         if(NetworkLogService.instance != null) {
-          Iptables.removeRules(context);
+          // replaces the installed rules
           Iptables.addRules(context);
         }
         return;
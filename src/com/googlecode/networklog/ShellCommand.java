@@ -12,21 +12,30 @@ import java.lang.Runtime;
 import java.lang.Process;
 import java.io.DataOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.InputStreamReader;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.lang.Thread;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 public class ShellCommand {
+  // queued by a StreamReader after its last line; compared by identity
+  static final String END_OF_STREAM = new String("<end of stream>");
+  // how long output still arriving is read after the process exits
+  static final int EXIT_DRAIN_TIMEOUT = 100; // ms
+
   Runtime rt;
   String[] command;
   String tag = "";
   Process process;
   DataOutputStream stdin;
   StreamReader stdout;
+  StreamReader stderr;
+  boolean raw;
   private String error;
   public int exitval;
 
@@ -63,14 +72,71 @@ public class ShellCommand {
 
     if(waitForExit) {
       waitForExit();
-      String[] output = stdout.buffer.toArray(new String[stdout.buffer.size()]);
-      return output;
+      return stdout.getLines();
     }
 
     stdin = new DataOutputStream(process.getOutputStream());
+    watchForExit();
     return null;
   }
 
+  // ends stdout when the process exits, even if a child it left running
+  // keeps the stream open, so that readers blocked on it return
+  void watchForExit() {
+    final Process watched = process;
+    final StreamReader reader = stdout;
+
+    Thread watcher = new Thread(new Runnable() {
+      public void run() {
+        try {
+          watched.waitFor();
+          reader.join(EXIT_DRAIN_TIMEOUT);
+        } catch(InterruptedException e) {
+          return;
+        }
+
+        reader.end();
+      }
+    }, "ShellCommandExit");
+    watcher.setDaemon(true);
+    watcher.start();
+  }
+
+  // Starts the command without a line reader on stdout so binary output can
+  // be consumed directly through getInputStream(); stderr is still buffered
+  // line by line for error reporting
+  public boolean startRaw() {
+    MyLog.d("ShellCommand: starting raw [" + tag + "] " + Arrays.toString(command));
+
+    exitval = -1;
+    error = null;
+    raw = true;
+
+    try {
+      process = new ProcessBuilder()
+        .command(command)
+        .start();
+
+      stderr = new StreamReader(process.getErrorStream());
+      stderr.start();
+    } catch(Exception e) {
+      Log.e("NetworkLog", "Failure starting raw shell command [" + tag + "]", e);
+      error = e.getCause().getMessage();
+      return false;
+    }
+
+    stdin = new DataOutputStream(process.getOutputStream());
+    return true;
+  }
+
+  public InputStream getInputStream() {
+    return process == null ? null : process.getInputStream();
+  }
+
+  public OutputStream getOutputStream() {
+    return stdin;
+  }
+
   public boolean hasError() {
     return error != null;
   }
@@ -116,7 +182,7 @@ public class ShellCommand {
       if(ignoreStdout == true) {
         MyLog.d("ShellCommand exited: [" + tag + "] exit " + exitval);
         return true;
-      } else if(stdout.buffer.size() == 0) {
+      } else if(stdout == null || !stdout.lineAvailable()) {
         MyLog.d("ShellCommand exited: [" + tag + "] exit " + exitval);
         return true;
       } else {
@@ -128,7 +194,46 @@ public class ShellCommand {
   }
 
   public void close() {
-    finish();
+    if(raw) {
+      closeRaw();
+    } else {
+      finish();
+    }
+  }
+
+  // A raw command's child may run as root, where destroy() only reaches the
+  // su wrapper; closing its stdin asks the child itself to exit
+  void closeRaw() {
+    MyLog.d("ShellCommand: closing raw [" + tag + "] " + Arrays.toString(command));
+
+    try {
+      if(stdin != null) {
+        stdin.close();
+        stdin = null;
+      }
+
+      if(process != null) {
+        process.getInputStream().close();
+      }
+    } catch(Exception e) {
+      Log.e("NetworkLog", "Exception closing [" + tag + "]", e);
+    }
+
+    if(process != null) {
+      process.destroy();
+    }
+  }
+
+  public String getErrorOutput() {
+    StringBuilder output = new StringBuilder();
+
+    if(stderr != null) {
+      for(String line : stderr.getLines()) {
+        output.append(line).append("\n");
+      }
+    }
+
+    return output.toString();
   }
 
   public void finish() {
@@ -191,6 +296,7 @@ public class ShellCommand {
     InputStream is;
     String tag;
     LinkedBlockingQueue<String> buffer = new LinkedBlockingQueue<String>();
+    boolean ended;
 
     StreamReader(InputStream is) {
       this(is, null);
@@ -223,36 +329,64 @@ public class ShellCommand {
       } catch (IOException e) {
         e.printStackTrace();
       }
+      end();
       System.out.println("StreamReader done");
     }
 
+    synchronized void end() {
+      if(!ended) {
+        ended = true;
+        buffer.offer(END_OF_STREAM);
+      }
+    }
+
     public boolean lineAvailable() {
-      return buffer.size() != 0;
+      String line = buffer.peek();
+      return line != null && line != END_OF_STREAM;
     }
 
-    public String readLine() {
-      String result;
+    // the lines queued and not read yet
+    public String[] getLines() {
+      ArrayList<String> lines = new ArrayList<String>(buffer.size());
 
-      try {
-        if(checkForExit() && buffer.size() == 0) {
-          return null;
+      for(String line : buffer) {
+        if(line != END_OF_STREAM) {
+          lines.add(line);
         }
+      }
 
-        while(checkForExit() == false) {
-          result = buffer.poll(200, TimeUnit.MILLISECONDS);
-          if(result != null) {
-            return result;
-          }
-        }
+      return lines.toArray(new String[lines.size()]);
+    }
 
-        if(buffer.size() != 0) {
-          result = buffer.take();
-          return result;
-        }
+    // blocks until a line arrives; null once the stream has ended, the
+    // process has exited or the thread is interrupted
+    public String readLine() {
+      try {
+        return getLine(buffer.take());
       } catch (InterruptedException e) {
-        e.printStackTrace();
+        Thread.currentThread().interrupt();
+        return null;
       }
-      return null;
+    }
+
+    // the same, but also null if no line arrives within timeout ms
+    public String readLine(long timeout) {
+      try {
+        return getLine(buffer.poll(timeout, TimeUnit.MILLISECONDS));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+
+    String getLine(String line) {
+      if(line == END_OF_STREAM) {
+        // left for the next reader
+        buffer.offer(END_OF_STREAM);
+        return null;
+      }
+
+      return line;
     }
 
     public void close() {
@@ -0,0 +1,243 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+// Finds the uid that owns the socket of a flow by asking the kernel
+// directly, through the nflog helper's sock_diag resolver (-D), instead of
+// reading the socket tables whole.  Queries are queued with add() and sent
+// together by resolve(), which the helper answers with one batch of exact
+// lookups; see NLREC_QUERY and NLREC_OWNER in jni/nflog/nlrecord.h.  Only
+// TCP and UDP flows have sockets to find.  Not thread-safe.
+
+package com.googlecode.networklog;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class SockDiagResolver {
+  static final int QUERY_SIZE = 48;
+  static final int OWNER_SIZE = 16;
+  static final int BATCH_SIZE = 64;
+  static final int READY_TIMEOUT = 5000;
+
+  ShellCommand command;
+  OutputStream out;
+  DataInputStream in;
+  byte[] queries = new byte[BATCH_SIZE * QUERY_SIZE];
+  byte[] owner = new byte[OWNER_SIZE];
+  int[] uids = new int[BATCH_SIZE];
+  int count;
+  char[] chars = new char[64];
+  AddressFormatter addressFormatter = new AddressFormatter();
+
+  // starts the helper and waits until it is ready; false if it did not get
+  // there, e.g. on kernels without sock_diag
+  public boolean start(String binary) {
+    command = new ShellCommand(new String[] { "su", "-c", binary + " -b -D" }, "SockDiagResolver");
+
+    if(!command.startRaw()) {
+      Log.w("NetworkLog", "Unable to start uid resolver: " + command.getError(true));
+      command = null;
+      return false;
+    }
+
+    out = command.getOutputStream();
+    in = new DataInputStream(command.getInputStream());
+
+    if(!waitForReady()) {
+      Log.w("NetworkLog", "Uid resolver did not start\n" + command.getErrorOutput());
+      stop();
+      return false;
+    }
+
+    MyLog.d("Uid resolver started");
+    return true;
+  }
+
+  // closing the stream on timeout ends the blocked read
+  boolean waitForReady() {
+    final ShellCommand waiting = command;
+
+    Thread watchdog = new Thread(new Runnable() {
+      public void run() {
+        try {
+          Thread.sleep(READY_TIMEOUT);
+        } catch(InterruptedException e) {
+          return;
+        }
+
+        waiting.close();
+      }
+    }, "ResolverReadyWatchdog");
+    watchdog.start();
+
+    try {
+      in.readFully(owner, 0, BinaryLogReader.HEADER_SIZE);
+      return (owner[0] & 0xff) == BinaryLogReader.RECORD_READY;
+    } catch(IOException e) {
+      return false;
+    } finally {
+      watchdog.interrupt();
+    }
+  }
+
+  // the helper exits once its stdin is closed
+  public void stop() {
+    if(command != null) {
+      command.close();
+      command = null;
+    }
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  // queues a query for entry's flow, unless one is queued already; returns
+  // its index, or -1 if there is no socket to ask about
+  public int add(LogEntry entry) {
+    int protocol;
+
+    if("TCP".equals(entry.proto)) {
+      protocol = 6;
+    } else if("UDP".equals(entry.proto)) {
+      protocol = 17;
+    } else {
+      return -1;
+    }
+
+    if(count == BATCH_SIZE) {
+      return -1;
+    }
+
+    int pos = count * QUERY_SIZE;
+    int family = putAddress(entry.src, pos + 16);
+
+    if(family == -1 || putAddress(entry.dst, pos + 32) != family) {
+      return -1;
+    }
+
+    queries[pos] = (byte) BinaryLogReader.RECORD_QUERY;
+    queries[pos + 1] = (byte) family;
+    putShort(pos + 2, QUERY_SIZE);
+    queries[pos + 4] = (byte) protocol;
+    queries[pos + 5] = 0;
+    putShort(pos + 6, entry.spt);
+    putShort(pos + 8, entry.dpt);
+    putShort(pos + 10, 0);
+
+    for(int i = 0; i < count; i++) {
+      if(isSameFlow(i * QUERY_SIZE, pos)) {
+        return i;
+      }
+    }
+
+    putInt(pos + 12, count);
+    return count++;
+  }
+
+  // sends the queued queries and waits for their answers; false if the
+  // helper is gone
+  public boolean resolve() {
+    try {
+      out.write(queries, 0, count * QUERY_SIZE);
+      out.flush();
+
+      for(int i = 0; i < count; i++) {
+        in.readFully(owner);
+        int id = getInt(4);
+
+        if((owner[0] & 0xff) != BinaryLogReader.RECORD_OWNER || id < 0 || id >= count) {
+          throw new IOException("Bad answer record type " + (owner[0] & 0xff) + " for query " + id);
+        }
+
+        uids[id] = getInt(8);
+      }
+
+      return true;
+    } catch(IOException e) {
+      Log.w("NetworkLog", "Exception reading uid resolver answers", e);
+      return false;
+    }
+  }
+
+  // the owner found for query index by resolve(); -1 if no socket matched
+  public int getUid(int index) {
+    return uids[index];
+  }
+
+  public void clear() {
+    count = 0;
+  }
+
+  // the address as a query stores it; returns its family, or -1 if it
+  // cannot be parsed
+  int putAddress(String address, int pos) {
+    int length = address.length();
+
+    if(length > chars.length) {
+      return -1;
+    }
+
+    address.getChars(0, length, chars, 0);
+
+    if(!addressFormatter.parse(chars, 0, length)) {
+      return -1;
+    }
+
+    int[] groups = addressFormatter.groups;
+
+    for(int i = 0; i < 16; i++) {
+      queries[pos + i] = 0;
+    }
+
+    if(groups[0] == 0 && groups[1] == 0 && groups[2] == 0 && groups[3] == 0
+        && groups[4] == 0 && groups[5] == 0xffff) {
+      queries[pos] = (byte) (groups[6] >> 8);
+      queries[pos + 1] = (byte) groups[6];
+      queries[pos + 2] = (byte) (groups[7] >> 8);
+      queries[pos + 3] = (byte) groups[7];
+      return 4;
+    }
+
+    for(int i = 0; i < 8; i++) {
+      queries[pos + i * 2] = (byte) (groups[i] >> 8);
+      queries[pos + i * 2 + 1] = (byte) groups[i];
+    }
+
+    return 6;
+  }
+
+  // everything but the query ids
+  boolean isSameFlow(int a, int b) {
+    for(int i = 0; i < QUERY_SIZE; i++) {
+      if((i < 12 || i >= 16) && queries[a + i] != queries[b + i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  void putShort(int pos, int value) {
+    queries[pos] = (byte) value;
+    queries[pos + 1] = (byte) (value >> 8);
+  }
+
+  void putInt(int pos, int value) {
+    putShort(pos, value);
+    putShort(pos + 2, value >> 16);
+  }
+
+  int getInt(int pos) {
+    return (owner[pos] & 0xff)
+      | ((owner[pos + 1] & 0xff) << 8)
+      | ((owner[pos + 2] & 0xff) << 16)
+      | ((owner[pos + 3] & 0xff) << 24);
+  }
+}
@@ -30,6 +30,15 @@ public class SysUtils {
   public static String nflogBinary;
   public static String nflogMd5;
   public static int nflogResource;
+  public static String iptablesRestoreBinary;
+  public static String ip6tablesRestoreBinary;
+
+  // HELPER_VERSION in jni/nflog/nflog.c; the first helper has no version
+  // and takes only the queue number, so no options may be passed to it
+  static final String NFLOG_VERSION_MARKER = "NetworkLog nflog helper ";
+  public static final int NFLOG_VERSION_OPTIONS = 2;
+  static String nflogVersionKey;
+  static int nflogVersion;
 
   public static boolean getBinariesIdentifiers() {
     String cpu_abi = Build.CPU_ABI.toLowerCase();
@@ -44,6 +53,8 @@ public class SysUtils {
       nflogBinary = "nflog_armv7";
       nflogMd5 = "5cdaa519c10ace37f62a0e6d65ce4f6e";
       nflogResource = R.raw.nflog_armv7;
+      iptablesRestoreBinary = "iptables_restore_armv7";
+      ip6tablesRestoreBinary = "ip6tables_restore_armv7";
     } else if(cpu_abi.contains("armeabi")) {
       iptablesBinary = "iptables_armv5";
       iptablesMd5 = "50e39f66369344b692084a9563c185d4";
@@ -54,6 +65,8 @@ public class SysUtils {
       nflogBinary = "nflog_armv5";
       nflogMd5 = "c8e7b5f4e96a47b686a68b84c9d12f24";
       nflogResource = R.raw.nflog_armv5;
+      iptablesRestoreBinary = "iptables_restore_armv5";
+      ip6tablesRestoreBinary = "ip6tables_restore_armv5";
     } else if(cpu_abi.contains("x86")) {
       iptablesBinary = "iptables_x86";
       iptablesMd5 = "3e7090f93ae3964c98e16016b742acbc";
@@ -64,6 +77,8 @@ public class SysUtils {
       nflogBinary = "nflog_x86";
       nflogMd5 = "1fb4cf7be57cb2c30ab2224ffac65ac2";
       nflogResource = R.raw.nflog_x86;
+      iptablesRestoreBinary = "iptables_restore_x86";
+      ip6tablesRestoreBinary = "ip6tables_restore_x86";
     } else if(cpu_abi.contains("mips")) {
       iptablesBinary = "iptables_mips";
       iptablesMd5 = "c208f8f9a6fa8d7b436c069b71299668";
@@ -74,10 +89,14 @@ public class SysUtils {
       nflogBinary = "nflog_mips";
       nflogMd5 = "21d507600aa498395f00a9daf37eeb02";
       nflogResource = R.raw.nflog_mips;
+      iptablesRestoreBinary = "iptables_restore_mips";
+      ip6tablesRestoreBinary = "ip6tables_restore_mips";
     } else {
       iptablesBinary = null;
       grepBinary = null;
       nflogBinary = null;
+      iptablesRestoreBinary = null;
+      ip6tablesRestoreBinary = null;
       return false;
     }
     return true;
@@ -95,6 +114,41 @@ public class SysUtils {
     }
   }
 
+  public static String getIp6tablesBinary(Context context) {
+    if(Build.VERSION.SDK_INT >= 14) {
+      return "ip6tables";
+    } else {
+      // no bundled ip6tables for older devices
+      return null;
+    }
+  }
+
+  // iptables-restore matching an iptables binary, or null if there is none;
+  // the system binaries may have one, and the bundled ones come with theirs
+  // once installBinaries has installed it
+  public static String getRestoreBinary(Context context, String iptablesBinary) {
+    if(Build.VERSION.SDK_INT >= 14) {
+      return iptablesBinary + "-restore";
+    } else {
+      String binary;
+
+      if(iptablesBinary.equals(getIptablesBinary(context))) {
+        binary = iptablesRestoreBinary;
+      } else if(iptablesBinary.equals(getIp6tablesBinary(context))) {
+        binary = ip6tablesRestoreBinary;
+      } else {
+        return null;
+      }
+
+      if(binary == null) {
+        return null;
+      }
+
+      File file = new File(context.getFilesDir().getAbsolutePath() + File.separator + binary);
+      return file.isFile() ? file.getPath() : null;
+    }
+  }
+
   public static String getGrepBinary(Context context) {
     if(Build.VERSION.SDK_INT >= 14) {
       // use system built-in binaries on >= ICS due to SELinux
@@ -116,12 +170,88 @@ public class SysUtils {
     return context.getFilesDir().getAbsolutePath() + File.separator + nflogBinary;
   }
 
-  public static boolean installBinary(Context context, String binary, String md5sum, int resource, String path) {
+  // version of the installed nflog helper, found by looking for its version
+  // marker in the binary rather than running it; 1 if it has none
+  public static int getNflogVersion(Context context) {
+    File file = new File(getNflogBinary(context));
+    String key = file.getPath() + ":" + file.lastModified() + ":" + file.length();
+
+    if(key.equals(nflogVersionKey)) {
+      return nflogVersion;
+    }
+
+    int version = 0;
+    byte[] marker = NFLOG_VERSION_MARKER.getBytes();
+    InputStream in = null;
+
+    try {
+      in = new FileInputStream(file);
+      byte buf[] = new byte[8192];
+      int matched = 0;
+      int len;
+
+      // the version digits follow the marker
+      scan:
+      while((len = in.read(buf)) != -1) {
+        for(int i = 0; i < len; i++) {
+          if(matched == marker.length) {
+            if(buf[i] >= '0' && buf[i] <= '9') {
+              version = version * 10 + buf[i] - '0';
+              continue;
+            }
+
+            if(version > 0) {
+              break scan;
+            }
+
+            matched = 0;
+          }
+
+          if(buf[i] == marker[matched]) {
+            matched++;
+          } else {
+            matched = buf[i] == marker[0] ? 1 : 0;
+          }
+        }
+      }
+    } catch(Exception e) {
+      Log.w("NetworkLog", "Unable to read nflog helper version", e);
+    } finally {
+      try {
+        if(in != null) {
+          in.close();
+        }
+      } catch(Exception e) {}
+    }
+
+    if(version == 0) {
+      version = 1;
+    }
+
+    MyLog.d("nflog helper version " + version);
+    nflogVersionKey = key;
+    nflogVersion = version;
+    return version;
+  }
+
+  // false for helpers that accept only the queue number
+  public static boolean nflogHasOptions(Context context) {
+    return getNflogVersion(context) >= NFLOG_VERSION_OPTIONS;
+  }
+
+  // useCache skips the md5sum if the file is unchanged since it was last
+  // verified
+  public static boolean installBinary(Context context, String binary, String md5sum, int resource, String path, boolean useCache) {
     boolean needsInstall = false;
     File file = new File(path);
 
     MyLog.d("Checking for " + binary + " with md5sum " + md5sum);
 
+    if(useCache && file.isFile() && CapabilityCache.isBinaryVerified(context, path, md5sum)) {
+      MyLog.d(binary + " unchanged since verified");
+      return true;
+    }
+
     if(file.isFile()) {
       String hash = MD5Sum.digestFile(file);
       if(!hash.equals(md5sum)) {
@@ -161,10 +291,15 @@ public class SysUtils {
       }
     }
 
+    CapabilityCache.setBinaryVerified(context, path, md5sum);
     return true;
   }
 
   public static boolean installBinaries(Context context) {
+    return installBinaries(context, true);
+  }
+
+  public static boolean installBinaries(Context context, boolean useCache) {
     if(!getBinariesIdentifiers()) {
       Resources res = context.getResources();
       showError(context, res.getString(R.string.error_unsupported_system_title), String.format(res.getString(R.string.error_unsupported_system_text), Build.CPU_ABI));
@@ -172,29 +307,79 @@ public class SysUtils {
     }
 
     String iptablesPath = context.getFilesDir().getAbsolutePath() + File.separator + iptablesBinary;
-    if(!installBinary(context, iptablesBinary, iptablesMd5, iptablesResource, iptablesPath)) {
+    if(!installBinary(context, iptablesBinary, iptablesMd5, iptablesResource, iptablesPath, useCache)) {
       return false;
     }
 
     String grepPath  = context.getFilesDir().getAbsolutePath() + File.separator + grepBinary;
-    if(!installBinary(context, grepBinary, grepMd5, grepResource, grepPath)) {
+    if(!installBinary(context, grepBinary, grepMd5, grepResource, grepPath, useCache)) {
       return false;
     }
 
     String nflogPath  = context.getFilesDir().getAbsolutePath() + File.separator + nflogBinary;
-    if(!installBinary(context, nflogBinary, nflogMd5, nflogResource, nflogPath)) {
+    if(!installBinary(context, nflogBinary, nflogMd5, nflogResource, nflogPath, useCache)) {
       return false;
     }
 
+    // optional; without them rules are changed one command at a time
+    installRestoreBinary(context, iptablesRestoreBinary, useCache);
+    installRestoreBinary(context, ip6tablesRestoreBinary, useCache);
+
     return true;
   }
 
+  // installs a bundled iptables-restore, checked against the md5sum of its
+  // bundled copy; removes an installed one that is no longer bundled
+  static boolean installRestoreBinary(Context context, String binary, boolean useCache) {
+    String path = context.getFilesDir().getAbsolutePath() + File.separator + binary;
+    int resource = context.getResources().getIdentifier(binary, "raw", context.getPackageName());
+
+    if(resource == 0) {
+      MyLog.d(binary + " not bundled");
+      new File(path).delete();
+      return false;
+    }
+
+    String md5sum = digestRawResource(context, resource);
+    if(md5sum == null) {
+      return false;
+    }
+
+    if(!installBinary(context, binary, md5sum, resource, path, useCache)) {
+      new File(path).delete();
+      return false;
+    }
+
+    return true;
+  }
+
+  // md5sum of the binary in a bundled zip, or null if it cannot be read
+  static String digestRawResource(Context context, int resource) {
+    ZipInputStream zip = null;
+
+    try {
+      zip = new ZipInputStream(context.getResources().openRawResource(resource));
+      zip.getNextEntry();
+      return MD5Sum.digestStream(zip);
+    } catch(Exception e) {
+      Log.w("NetworkLog", "Unable to read bundled binary", e);
+      return null;
+    } finally {
+      try {
+        if(zip != null) {
+          zip.close();
+        }
+      } catch(Exception e) {}
+    }
+  }
+
   public static boolean checkRoot(Context context) {
     if(NetworkLog.shell == null || NetworkLog.shell.checkForExit()) {
       NetworkLog.shell = createRootShell(context, "CheckRootShell", false);
 
       if(NetworkLog.shell.hasError()) {
         Log.e("NetworkLog", "[check-root] Check root failed: " + NetworkLog.shell.getError(true));
+        CapabilityCache.setRoot(context, false);
         return false;
       }
     } 
@@ -210,14 +395,17 @@ public class SysUtils {
         Log.d("NetworkLog", "[check-root] Got id output: [" + line + "]");
         if(line.startsWith("uid=0")) {
           Log.d("NetworkLog", "[check-root] Check root passed (uid=0)");
+          CapabilityCache.setRoot(context, true);
           return true;
         }
       }
       Log.e("NetworkLog", "[check-root] Check root failed (uid != 0)");
+      CapabilityCache.setRoot(context, false);
       return false;
     }
 
     Log.d("NetworkLog", "[check-root] Check root tentatively passed (no id command, but su succeeded)");
+    CapabilityCache.setRoot(context, true);
     return true;
   }
 
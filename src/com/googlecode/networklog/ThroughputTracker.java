@@ -54,16 +54,16 @@ public class ThroughputTracker {
 
       if(entry.in != null && entry.in.length() > 0) {
         if(NetworkLogService.throughputBps) {
-          throughput.download += entry.len * Byte.SIZE;
+          throughput.download += (long) entry.len * entry.weight * Byte.SIZE;
         } else {
-          throughput.download += entry.len;
+          throughput.download += (long) entry.len * entry.weight;
         }
         throughput.address = entry.src + ":" + entry.spt;
       } else {
         if(NetworkLogService.throughputBps) {
-          throughput.upload += entry.len * Byte.SIZE;
+          throughput.upload += (long) entry.len * entry.weight * Byte.SIZE;
         } else {
-          throughput.upload += entry.len;
+          throughput.upload += (long) entry.len * entry.weight;
         }
         throughput.address = entry.dst + ":" + entry.dpt;
       }
@@ -0,0 +1,315 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+// Counters-only logging: instead of logging packets, polls the kernel's
+// per-uid traffic counters and reports what changed since the last poll as
+// one entry per app, interface and direction.  The counters come from
+// xt_qtaguid where the kernel has it, otherwise from owner-match rules,
+// which only see sent traffic and not which interface it used.
+
+package com.googlecode.networklog;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class UidCounters {
+  static final String QTAGUID_STATS = "/proc/net/xt_qtaguid/stats";
+  static final String CHAIN_ACCT = "networklog_acct";
+  // owner-match counters are not per interface or address
+  static final String ANY = "*";
+
+  NetworkLogService service;
+  InteractiveShell shell;
+  boolean qtaguid;
+  String iptablesBinary;
+  String ip6tablesBinary;
+  // totals at the last poll, by "interface uid"; rx bytes, rx packets,
+  // tx bytes, tx packets
+  HashMap<String, long[]> last = new HashMap<String, long[]>();
+  LogEntry entry = new LogEntry();
+
+  public UidCounters(NetworkLogService service) {
+    this.service = service;
+  }
+
+  public boolean start() {
+    shell = new InteractiveShell("su", "CounterShell");
+    shell.start();
+
+    if(shell.hasError()) {
+      String error = shell.getError(true);
+      Log.e("NetworkLog", "Error starting counter shell: " + error);
+      SysUtils.showError(service, service.getString(R.string.error_default_title), "Error starting counter shell: " + error);
+      return false;
+    }
+
+    List<String> output = run("cat " + QTAGUID_STATS);
+    qtaguid = output != null && output.size() > 0 && output.get(0).startsWith("idx ");
+
+    if(!qtaguid) {
+      Log.w("NetworkLog", QTAGUID_STATS + " not available; counting sent traffic with owner-match rules");
+
+      if(!addRules()) {
+        stop();
+        return false;
+      }
+    }
+
+    // the first poll only sets the baseline
+    HashMap<String, long[]> totals = readTotals();
+
+    if(totals == null) {
+      stop();
+      return false;
+    }
+
+    last = totals;
+    return true;
+  }
+
+  public void stop() {
+    if(shell != null) {
+      if(!qtaguid) {
+        removeRules();
+      }
+
+      shell.close();
+      shell = null;
+    }
+  }
+
+  // reports the traffic since the last poll; false if the counters can no
+  // longer be read
+  public boolean poll() {
+    HashMap<String, long[]> totals = readTotals();
+
+    if(totals == null) {
+      return false;
+    }
+
+    long now = System.currentTimeMillis();
+
+    for(Map.Entry<String, long[]> total : totals.entrySet()) {
+      long[] current = total.getValue();
+      long[] previous = last.get(total.getKey());
+      String key = total.getKey();
+      int space = key.indexOf(' ');
+      String iface = key.substring(0, space);
+      int uid = Integer.parseInt(key.substring(space + 1));
+
+      report(uid, iface, true, delta(current, previous, 0), delta(current, previous, 1), now);
+      report(uid, iface, false, delta(current, previous, 2), delta(current, previous, 3), now);
+    }
+
+    last = totals;
+    return true;
+  }
+
+  // an interface that went away and came back starts from zero again
+  static long delta(long[] current, long[] previous, int index) {
+    if(previous == null || current[index] < previous[index]) {
+      return current[index];
+    }
+
+    return current[index] - previous[index];
+  }
+
+  void report(int uid, String iface, boolean received, long bytes, long packets, long timestamp) {
+    if(packets <= 0) {
+      return;
+    }
+
+    entry.uid = uid;
+    entry.uidString = StringPool.get(uid);
+    entry.in = received ? iface : "";
+    entry.out = received ? "" : iface;
+    entry.src = ANY;
+    entry.spt = 0;
+    entry.dst = ANY;
+    entry.dpt = 0;
+    entry.proto = "";
+    entry.len = bytes > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) bytes;
+    entry.packets = packets > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) packets;
+    entry.weight = 1;
+    entry.timestamp = timestamp;
+    entry.validated = false;
+
+    service.notifyNewEntry(entry);
+  }
+
+  HashMap<String, long[]> readTotals() {
+    HashMap<String, long[]> totals = new HashMap<String, long[]>();
+
+    if(qtaguid) {
+      List<String> output = run("cat " + QTAGUID_STATS);
+
+      if(output == null) {
+        return null;
+      }
+
+      for(String line : output) {
+        parseQtaguidLine(line, totals);
+      }
+    } else {
+      if(!readRuleCounters(iptablesBinary, totals)) {
+        return null;
+      }
+
+      if(ip6tablesBinary != null) {
+        readRuleCounters(ip6tablesBinary, totals);
+      }
+    }
+
+    return totals;
+  }
+
+  // idx iface acct_tag_hex uid_tag_int cnt_set rx_bytes rx_packets tx_bytes tx_packets ...
+  // only the untagged (0x0) rows are per-uid totals; the counter sets
+  // (background, foreground) are added together
+  static void parseQtaguidLine(String line, HashMap<String, long[]> totals) {
+    String[] fields = line.trim().split(" +");
+
+    if(fields.length < 9 || !fields[2].equals("0x0")) {
+      return;
+    }
+
+    try {
+      String key = fields[1] + " " + Integer.parseInt(fields[3]);
+      long[] total = getTotal(totals, key);
+
+      total[0] += Long.parseLong(fields[5]);
+      total[1] += Long.parseLong(fields[6]);
+      total[2] += Long.parseLong(fields[7]);
+      total[3] += Long.parseLong(fields[8]);
+    } catch(NumberFormatException e) {
+      Log.w("NetworkLog", "Skipping malformed qtaguid line [" + line + "]");
+    }
+  }
+
+  // "pkts bytes target prot opt in out source destination owner UID match N"
+  boolean readRuleCounters(String binary, HashMap<String, long[]> totals) {
+    List<String> output = run(binary + " -L " + CHAIN_ACCT + " -v -x -n");
+
+    if(output == null) {
+      return false;
+    }
+
+    for(String line : output) {
+      int match = line.indexOf("UID match ");
+
+      if(match == -1) {
+        continue;
+      }
+
+      String[] fields = line.trim().split(" +");
+
+      try {
+        String key = ANY + " " + Integer.parseInt(line.substring(match + 10).trim());
+        long[] total = getTotal(totals, key);
+
+        total[3] += Long.parseLong(fields[0]);
+        total[2] += Long.parseLong(fields[1]);
+      } catch(NumberFormatException e) {
+        Log.w("NetworkLog", "Skipping malformed counter rule [" + line + "]");
+      }
+    }
+
+    return true;
+  }
+
+  static long[] getTotal(HashMap<String, long[]> totals, String key) {
+    long[] total = totals.get(key);
+
+    if(total == null) {
+      total = new long[4];
+      totals.put(key, total);
+    }
+
+    return total;
+  }
+
+  // one counting rule per installed app's uid, jumped to from OUTPUT
+  boolean addRules() {
+    iptablesBinary = SysUtils.getIptablesBinary(service);
+
+    if(iptablesBinary == null) {
+      return false;
+    }
+
+    ip6tablesBinary = SysUtils.getIp6tablesBinary(service);
+
+    ArrayList<String> uids;
+    synchronized(ApplicationsTracker.installedAppsLock) {
+      uids = new ArrayList<String>(ApplicationsTracker.uidMap.keySet());
+    }
+
+    removeRules();
+
+    ArrayList<String> commands = new ArrayList<String>();
+    addRuleCommands(commands, iptablesBinary, uids);
+
+    if(ip6tablesBinary != null) {
+      addRuleCommands(commands, ip6tablesBinary, uids);
+    }
+
+    return Iptables.runCommands(service, commands, "UidCounters", R.string.iptables_error_add_rules);
+  }
+
+  static void addRuleCommands(ArrayList<String> commands, String binary, List<String> uids) {
+    commands.add(binary + " -N " + CHAIN_ACCT);
+
+    for(String uid : uids) {
+      if(!uid.startsWith("-")) {
+        commands.add(binary + " -A " + CHAIN_ACCT + " -m owner --uid-owner " + uid + " -j RETURN");
+      }
+    }
+
+    commands.add(binary + " -I OUTPUT 1 -j " + CHAIN_ACCT);
+  }
+
+  // most of these fail when the rules are not there
+  void removeRules() {
+    if(iptablesBinary == null) {
+      return;
+    }
+
+    removeRules(iptablesBinary);
+
+    if(ip6tablesBinary != null) {
+      removeRules(ip6tablesBinary);
+    }
+  }
+
+  void removeRules(String binary) {
+    run(binary + " -D OUTPUT -j " + CHAIN_ACCT);
+    run(binary + " -F " + CHAIN_ACCT);
+    run(binary + " -X " + CHAIN_ACCT);
+  }
+
+  // output of a command run in the counter shell, or null if it failed
+  List<String> run(String command) {
+    if(!shell.sendCommand(command)) {
+      Log.e("NetworkLog", "UidCounters unable to run [" + command + "]: " + shell.getError(true));
+      return null;
+    }
+
+    List<String> output = new ArrayList<String>();
+    shell.waitForCommandExit(output);
+
+    if(shell.exitval != 0) {
+      if(MyLog.enabled) {
+        MyLog.d("UidCounters: exit " + shell.exitval + " for [" + command + "]");
+      }
+      return null;
+    }
+
+    return output;
+  }
+}
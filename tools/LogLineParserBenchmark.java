@@ -0,0 +1,88 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+// Checks that LogLineParser allocates nothing per line once warm, and
+// reports its parse rate.  Runs on a desktop JVM that has
+// com.sun.management.ThreadMXBean (OpenJDK, Oracle); from the top of the
+// tree:
+//
+//   javac -cp $ANDROID_SDK/platforms/android-16/android.jar -d /tmp/bench \
+//     -sourcepath src tools/LogLineParserBenchmark.java
+//   java -cp /tmp/bench com.googlecode.networklog.LogLineParserBenchmark
+//
+// android.jar is needed only to compile MyLog; debug logging is turned off
+// here, so nothing from it runs.  Exits with 1 if any bytes were allocated
+// per line after warm-up.
+
+package com.googlecode.networklog;
+
+import java.lang.management.ManagementFactory;
+
+public class LogLineParserBenchmark {
+  static final int WARMUP_LINES = 200000;
+  static final int MEASURED_LINES = 1000000;
+
+  // LOG target lines from the kernel log and nflog helper text lines
+  static final String[] LINES = {
+    "<4>[ 1234.567890] {NL}IN=wlan0 OUT= MAC=00:11:22:33:44:55:66:77:88:99:aa:bb:08:00 SRC=93.184.216.34 DST=192.168.1.10 LEN=60 TOS=0x00 PREC=0x00 TTL=55 ID=0 DF PROTO=TCP SPT=443 DPT=40312 WINDOW=65535 RES=0x00 ACK SYN URGP=0 UID=10061",
+    "<4>[ 1234.568012] {NL}IN= OUT=rmnet0 SRC=10.0.0.2 DST=8.8.8.8 LEN=73 TOS=0x00 PREC=0x00 TTL=64 ID=4242 PROTO=UDP SPT=51234 DPT=53 LEN=53 UID=1051",
+    "{NL}IN= OUT=wlan0 SRC=2001:0db8:0000:0000:0000:0000:0000:0001 DST=2606:2800:0220:0001:0248:1893:25c8:1946 LEN=80 PROTO=TCP SPT=40314 DPT=443 UID=10061 TS=1700000000000",
+    "{NL}IN=wlan0 OUT= SRC=192.168.1.1 DST=192.168.1.10 LEN=56 PROTO=ICMP TYPE=3 CODE=3 [SRC=192.168.1.10 DST=192.168.1.1 LEN=40 PROTO=UDP SPT=9 DPT=99 ] TS=1700000000123",
+  };
+
+  public static void main(String[] args) {
+    MyLog.enabled = false;
+
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    LogLineParser parser = new LogLineParser();
+    LogEntry entry = new LogEntry();
+
+    for(String line : LINES) {
+      parser.setLine(line);
+      while(parser.nextEntry()) {
+        if(!parser.parseEntry(entry)) {
+          System.err.println("Unable to parse [" + line + "]");
+          System.exit(1);
+        }
+      }
+    }
+
+    // fills the string pools and lets the JIT compile the parser
+    int parsed = parse(parser, entry, WARMUP_LINES);
+
+    long allocated = threads.getThreadAllocatedBytes(thread);
+    long start = System.nanoTime();
+    parsed = parse(parser, entry, MEASURED_LINES);
+    long elapsed = System.nanoTime() - start;
+    allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+    System.out.println("Lines: " + MEASURED_LINES + ", entries: " + parsed);
+    System.out.println("ns/line: " + (double) elapsed / MEASURED_LINES);
+    System.out.println("Bytes allocated: " + allocated + " (" + (double) allocated / MEASURED_LINES + " per line)");
+
+    // the allocation counter itself may be off by a few bytes
+    if(allocated >= MEASURED_LINES) {
+      System.err.println("LogLineParser allocates per line");
+      System.exit(1);
+    }
+  }
+
+  static int parse(LogLineParser parser, LogEntry entry, int count) {
+    int parsed = 0;
+
+    for(int i = 0; i < count; i++) {
+      parser.setLine(LINES[i % LINES.length]);
+      while(parser.nextEntry()) {
+        if(parser.parseEntry(entry)) {
+          parsed++;
+        }
+      }
+    }
+
+    return parsed;
+  }
+}